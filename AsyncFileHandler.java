@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Asynchronous client of one server. Each call returns at once with a
+ * future, so a proxy thread can have many calls outstanding. Calls run on
+ * an executor shared by all servers, at most {@code maxInFlight} at a time
+ * per server; calls over the limit wait in a queue instead of holding an
+ * executor thread, so a slow server cannot starve the others.
+ *
+ * <p>Each call has a request class with its own queue. Waiting calls are
+ * started by stride scheduling, so each class gets a share of the server in
+ * proportion to its weight, and a class that was idle does not get to catch
+ * up. A few slots are kept for latency sensitive classes, so metadata calls
+ * and small fetches wait for at most one call to finish even while bulk
+ * transfers fill the window.
+ *
+ * <p>Waiting for a call gives up after {@link #CALL_TIMEOUT_MS}, queueing
+ * included, so a stuck server fails its callers instead of holding them.
+ */
+public class AsyncFileHandler {
+    /**
+     * Slots only latency sensitive classes may use
+     */
+    private static final int RESERVED_SLOTS = 2;
+    private static final long STRIDE = 1L << 20;
+    /**
+     * How long a caller waits for a call, queueing included
+     */
+    public static final long CALL_TIMEOUT_MS = 60000;
+
+    /**
+     * Kinds of calls, scheduled by weight.
+     */
+    public enum RequestClass {
+        METADATA(16, true),
+        SMALL_FETCH(8, true),
+        BULK_FETCH(4, false),
+        WRITE_BACK(2, false),
+        PREFETCH(1, false);
+
+        private final int weight;
+        private final boolean latencySensitive;
+
+        RequestClass(int weight, boolean latencySensitive) {
+            this.weight = weight;
+            this.latencySensitive = latencySensitive;
+        }
+    }
+
+    /**
+     * A call on the remote handler.
+     */
+    public interface RemoteCall<T> {
+        T call(RemoteFileHandler handler) throws IOException;
+    }
+
+    private final String url;
+    private final RemoteFileHandler handler;
+    private final int maxInFlight;
+    private final Executor executor;
+    /**
+     * Waiting calls and scheduling pass of each class, by ordinal
+     */
+    private final List<ArrayDeque<Runnable>> waiting;
+    private final long[] pass;
+    /**
+     * Pass of the class started last
+     */
+    private long globalPass = 0;
+    private int inFlight = 0;
+
+    public AsyncFileHandler(String url,
+                            RemoteFileHandler handler,
+                            int maxInFlight,
+                            Executor executor) {
+        this.url = url;
+        this.handler = handler;
+        this.maxInFlight = maxInFlight;
+        this.executor = executor;
+        int classes = RequestClass.values().length;
+        this.waiting = new ArrayList<>(classes);
+        for (int i = 0; i < classes; i++) {
+            waiting.add(new ArrayDeque<>());
+        }
+        this.pass = new long[classes];
+    }
+
+    /**
+     * Make a call on the server.
+     *
+     * @param requestClass class the call is scheduled in
+     * @param remoteCall   call to make
+     * @return future completed with the result, or exceptionally with the
+     * IOException the call failed with
+     */
+    public <T> CompletableFuture<T> call(RequestClass requestClass, RemoteCall<T> remoteCall) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable task = () -> {
+            // The caller gave up while the call was queued
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(remoteCall.call(handler));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        };
+        synchronized (this) {
+            int i = requestClass.ordinal();
+            if (waiting.get(i).isEmpty()) {
+                // An idle class starts level with the others
+                pass[i] = Math.max(pass[i], globalPass);
+            }
+            waiting.get(i).add(task);
+        }
+        dispatch();
+        return future;
+    }
+
+    /**
+     * Start waiting calls while the server is under its limit.
+     */
+    private void dispatch() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = next();
+                if (task == null) {
+                    return;
+                }
+                inFlight++;
+            }
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    synchronized (this) {
+                        inFlight--;
+                    }
+                    dispatch();
+                }
+            });
+        }
+    }
+
+    /**
+     * Take the waiting call of the class with the lowest pass that may
+     * start now.
+     *
+     * @return call to start, or null if none may
+     */
+    private Runnable next() {
+        int reserved = Math.min(RESERVED_SLOTS, maxInFlight - 1);
+        RequestClass best = null;
+        for (RequestClass requestClass : RequestClass.values()) {
+            int i = requestClass.ordinal();
+            int limit = requestClass.latencySensitive ? maxInFlight : maxInFlight - reserved;
+            if (waiting.get(i).isEmpty() || inFlight >= limit) {
+                continue;
+            }
+            if (best == null || pass[i] < pass[best.ordinal()]) {
+                best = requestClass;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        int i = best.ordinal();
+        globalPass = pass[i];
+        pass[i] += STRIDE / best.weight;
+        return waiting.get(i).poll();
+    }
+
+    public CompletableFuture<FileMeta> getFileMeta(String path) {
+        return call(RequestClass.METADATA, h -> h.getFileMeta(path));
+    }
+
+    public CompletableFuture<Map<String, FileMeta>> getDirectoryMeta(String path) {
+        return call(RequestClass.PREFETCH, h -> h.getDirectoryMeta(path));
+    }
+
+    public CompletableFuture<RawFile> getFile(String path, long version, int nbytes, long offset) {
+        return call(RequestClass.BULK_FETCH, h -> h.getFile(path, version, nbytes, offset));
+    }
+
+    public CompletableFuture<Boolean> creatFile(String path) {
+        return call(RequestClass.METADATA, h -> h.creatFile(path));
+    }
+
+    public CompletableFuture<Long> beginWrite(String path) {
+        return call(RequestClass.METADATA, h -> h.beginWrite(path));
+    }
+
+    public CompletableFuture<Void> writeFile(long writeId, byte[] buf, long offset) {
+        return call(RequestClass.WRITE_BACK, h -> {
+            h.writeFile(writeId, buf, offset);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Long> commitWrite(long writeId, long minVersion) {
+        return call(RequestClass.METADATA, h -> h.commitWrite(writeId, minVersion));
+    }
+
+    public CompletableFuture<Void> abortWrite(long writeId) {
+        return call(RequestClass.METADATA, h -> {
+            h.abortWrite(writeId);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> unlink(String path) {
+        return call(RequestClass.METADATA, h -> {
+            h.unlink(path);
+            return null;
+        });
+    }
+
+    /**
+     * Wait for a call and return its result, giving up after
+     * {@link #CALL_TIMEOUT_MS}.
+     *
+     * @param future future returned by a call
+     * @return result of the call
+     * @throws IOException the exception the call failed with, or if it did
+     *                     not finish in time
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new IOException("Call timed out after " + CALL_TIMEOUT_MS + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new IOException("Interrupted waiting for a call", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads chunks from a {@link BulkServer} over several TCP streams. Chunk
+ * requests are spread over the streams in turn, so the chunks of one file
+ * move in parallel and one stream's congestion window does not cap the
+ * transfer. Each stream carries many requests at once; responses are
+ * matched to requests by tag. A broken stream fails its pending requests
+ * and is reconnected by the next request. A request without a response
+ * after {@link #REQUEST_TIMEOUT_MS} fails, so the caller can read the chunk
+ * over RMI instead.
+ */
+public class BulkClient {
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final long REQUEST_TIMEOUT_MS = 20000;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final String host;
+    private final int port;
+    private final Stream[] streams;
+    private final AtomicInteger nextStream;
+    private final AtomicLong nextTag;
+
+    /**
+     * @param host    host of the server
+     * @param port    bulk port of the server
+     * @param streams number of TCP streams
+     */
+    public BulkClient(String host, int port, int streams) {
+        this.host = host;
+        this.port = port;
+        this.streams = new Stream[streams];
+        for (int i = 0; i < streams; i++) {
+            this.streams[i] = new Stream();
+        }
+        this.nextStream = new AtomicInteger();
+        this.nextTag = new AtomicLong();
+    }
+
+    /**
+     * Read a chunk of a version.
+     *
+     * @return chunk read, or null if the version is gone on the server
+     * @throws IOException if the stream fails or the server reports an error
+     */
+    public RawFile getFile(String path, long version, int nbytes, long offset) throws IOException {
+        Stream stream = streams[Math.floorMod(nextStream.getAndIncrement(), streams.length)];
+        return AsyncFileHandler.await(stream.request(path, version, nbytes, offset));
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port + " x" + streams.length;
+    }
+
+    /**
+     * One TCP stream, reconnected when its connection breaks.
+     */
+    private class Stream {
+        private Connection connection;
+
+        CompletableFuture<RawFile> request(String path,
+                                           long version,
+                                           int nbytes,
+                                           long offset) {
+            long tag = nextTag.incrementAndGet();
+            CompletableFuture<RawFile> future = new CompletableFuture<>();
+            byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+            Connection conn = null;
+            try {
+                synchronized (this) {
+                    conn = connect();
+                    // Registered before it is sent, so the response finds it
+                    conn.pending.put(tag, future);
+                    conn.out.writeLong(tag);
+                    conn.out.writeLong(version);
+                    conn.out.writeLong(offset);
+                    conn.out.writeInt(nbytes);
+                    conn.out.writeInt(pathBytes.length);
+                    conn.out.write(pathBytes);
+                    conn.out.flush();
+                }
+            } catch (IOException e) {
+                if (conn != null) {
+                    fail(conn, e);
+                } else {
+                    future.completeExceptionally(e);
+                }
+                return future;
+            }
+            Connection sentOn = conn;
+            CompletableFuture.delayedExecutor(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .execute(() -> expire(sentOn, tag));
+            return future;
+        }
+
+        private Connection connect() throws IOException {
+            if (connection != null) {
+                return connection;
+            }
+            Socket s = new Socket();
+            Connection conn;
+            try {
+                s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                s.setTcpNoDelay(true);
+                conn = new Connection(s);
+            } catch (IOException e) {
+                s.close();
+                throw e;
+            }
+            connection = conn;
+            Thread reader = new Thread(() -> read(conn), "bulk-reader");
+            reader.setDaemon(true);
+            reader.start();
+            return conn;
+        }
+
+        private void read(Connection conn) {
+            try {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(conn.socket.getInputStream(), BUFFER_SIZE));
+                while (true) {
+                    long tag = in.readLong();
+                    int status = in.readInt();
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    CompletableFuture<RawFile> future = conn.pending.remove(tag);
+                    if (future == null) {
+                        continue;
+                    }
+                    if (status == BulkServer.OK) {
+                        future.complete(new RawFile(data));
+                    } else if (status == BulkServer.GONE) {
+                        future.complete(null);
+                    } else {
+                        future.completeExceptionally(
+                                new IOException(new String(data, StandardCharsets.UTF_8)));
+                    }
+                }
+            } catch (IOException e) {
+                fail(conn, e);
+            }
+        }
+
+        /**
+         * Fail a request still waiting for its response.
+         */
+        private void expire(Connection conn, long tag) {
+            CompletableFuture<RawFile> future = conn.pending.remove(tag);
+            if (future != null) {
+                future.completeExceptionally(new IOException(
+                        "No response in " + REQUEST_TIMEOUT_MS + " ms"));
+            }
+        }
+
+        /**
+         * Drop a broken connection and fail the requests sent on it. Requests
+         * sent on a later connection of the stream are not affected.
+         */
+        private void fail(Connection conn, IOException e) {
+            synchronized (this) {
+                if (connection == conn) {
+                    connection = null;
+                }
+            }
+            try {
+                conn.socket.close();
+            } catch (IOException ignored) {
+            }
+            for (Long tag : conn.pending.keySet()) {
+                CompletableFuture<RawFile> future = conn.pending.remove(tag);
+                if (future != null) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * One TCP connection and the requests sent on it waiting for a response.
+     */
+    private static class Connection {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final Map<Long, CompletableFuture<RawFile>> pending = new ConcurrentHashMap<>();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        }
+    }
+}
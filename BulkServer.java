@@ -0,0 +1,186 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves chunk reads over plain TCP connections, next to RMI, so a proxy can
+ * spread the chunks of one file over several streams. Each connection
+ * carries many requests at once; responses are tagged with the request they
+ * answer and may come back in any order.
+ *
+ * <p>Request: tag (long), version (long), offset (long), nbytes (int), path
+ * length (int), path (UTF-8). Response: tag (long), status (int), length
+ * (int), data. Status is {@link #OK}, {@link #GONE} when the version is no
+ * longer on the server, or {@link #ERROR} with a UTF-8 message as data.
+ *
+ * <p>Connections and the requests being answered are both bounded. A
+ * connection over the limit is closed, and a connection whose requests fill
+ * the queue answers the next one itself before reading more.
+ */
+public class BulkServer {
+    public static final int OK = 0;
+    public static final int GONE = 1;
+    public static final int ERROR = 2;
+    /**
+     * Longest path accepted in a request
+     */
+    public static final int MAX_PATH_LEN = 4096;
+    /**
+     * Largest chunk a request may ask for
+     */
+    public static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_CONNECTIONS = 256;
+    private static final int WORKERS = 32;
+    /**
+     * Requests waiting for a worker before readers answer them themselves
+     */
+    private static final int MAX_QUEUED = 256;
+    private static final long IDLE_THREAD_SECONDS = 60;
+
+    private final RemoteFileHandler server;
+    private final ServerSocket serverSocket;
+    private final ThreadPoolExecutor readers;
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * @param server serves the chunks
+     * @param port   port to listen on, 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public BulkServer(RemoteFileHandler server, int port) throws IOException {
+        this.server = server;
+        this.serverSocket = new ServerSocket(port);
+        this.readers = new ThreadPoolExecutor(0,
+                MAX_CONNECTIONS,
+                IDLE_THREAD_SECONDS,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "bulk-reader");
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.workers = new ThreadPoolExecutor(WORKERS,
+                WORKERS,
+                IDLE_THREAD_SECONDS,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED),
+                r -> {
+                    Thread t = new Thread(r, "bulk-worker");
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void start() {
+        Thread t = new Thread(this::accept, "bulk-accept");
+        t.setDaemon(true);
+        t.start();
+        System.err.println("[ Bulk transfers on port: " + getPort() + " ]");
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                try {
+                    readers.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    System.err.println("[ Too many bulk connections, closing "
+                            + socket.getRemoteSocketAddress() + " ]");
+                    socket.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Read requests from one connection and answer each on a worker.
+     */
+    private void serve(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            while (true) {
+                long tag = in.readLong();
+                long version = in.readLong();
+                long offset = in.readLong();
+                int nbytes = in.readInt();
+                int pathLen = in.readInt();
+                if (pathLen < 0 || pathLen > MAX_PATH_LEN || nbytes < 0) {
+                    throw new IOException("Malformed bulk request");
+                }
+                byte[] pathBytes = new byte[pathLen];
+                in.readFully(pathBytes);
+                String path = new String(pathBytes, StandardCharsets.UTF_8);
+                if (nbytes > MAX_CHUNK_SIZE) {
+                    reply(out, tag, ERROR, ("Chunk of " + nbytes + " bytes is over "
+                            + MAX_CHUNK_SIZE).getBytes(StandardCharsets.UTF_8));
+                    continue;
+                }
+                workers.execute(() -> answer(out, tag, path, version, nbytes, offset));
+            }
+        } catch (EOFException e) {
+            // Proxy closed the connection
+        } catch (IOException e) {
+            System.err.println("[ Bulk connection closed: " + e.getMessage() + " ]");
+        }
+    }
+
+    private void answer(DataOutputStream out,
+                        long tag,
+                        String path,
+                        long version,
+                        int nbytes,
+                        long offset) {
+        int status;
+        byte[] data;
+        try {
+            RawFile rawFile = server.getFile(path, version, nbytes, offset);
+            status = rawFile == null ? GONE : OK;
+            data = rawFile == null ? new byte[0] : rawFile.getBuf();
+        } catch (Throwable e) {
+            // Any failure is answered, so the proxy does not wait for it
+            status = ERROR;
+            data = String.valueOf(e).getBytes(StandardCharsets.UTF_8);
+        }
+        reply(out, tag, status, data);
+    }
+
+    private void reply(DataOutputStream out, long tag, int status, byte[] data) {
+        try {
+            synchronized (out) {
+                out.writeLong(tag);
+                out.writeInt(status);
+                out.writeInt(data.length);
+                out.write(data);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The reader of this connection sees it closed too
+        }
+    }
+}
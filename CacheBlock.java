@@ -4,15 +4,24 @@ import java.nio.file.Files;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
+/**
+ * A read or write copy in the cache. A read copy holds no strings of its
+ * own: its original path is an interned path id of the version index, and
+ * its suffix path and file are made from it on demand.
+ */
 public class CacheBlock {
     /**
-     * Suffixed path of cached file
+     * Index the path id is interned in, which also knows the cache root
      */
-    private String suffixPath;
+    private VersionIndex index;
     /**
-     * File object cached, one instance each file
+     * Interned original path
      */
-    private File file;
+    private int pathId;
+    /**
+     * Relative path of a write copy, null for a read copy
+     */
+    private String writeCopyPath;
     /**
      * Flag indicating if the cache has been changed
      */
@@ -25,14 +34,20 @@ public class CacheBlock {
      * Version number
      */
     private long version;
-    /**
-     * Original relative path name
-     */
-    private String origPath;
     /**
      * A reference counter indicating how many client is opening the file
      */
     private int refCnt;
+    /**
+     * Length of the version if it is packed in a segment instead of having
+     * a file of its own, -1 otherwise
+     */
+    private long packedLength = -1;
+    /**
+     * Bytes accounted for the copy as private to this proxy, -1 if it is
+     * accounted in the shared index instead
+     */
+    private long privateBytes = -1;
     /**
      * Pointer to previous block
      */
@@ -48,17 +63,18 @@ public class CacheBlock {
     /**
      * Creat cache block with relative path and version number.
      *
-     * @param origPath relative path (with version suffix) to file
-     * @param version  current version number
+     * @param index   index the path id is interned in
+     * @param pathId  interned relative path to server file
+     * @param version current version number
      */
-    public CacheBlock(String cacheRoot, String origPath, long version) {
-        this.origPath = origPath;
-        this.suffixPath = genSuffixPath(origPath, version);
+    public CacheBlock(VersionIndex index, int pathId, long version) {
+        this.index = index;
+        this.pathId = pathId;
         this.version = version;
-        this.file = new File(cacheRoot + suffixPath);
         this.isDirty = false;
         this.isValid = true;
         this.refCnt = 0;
+        File file = getFile();
         try {
             file.createNewFile();
             System.err.println("[ Empty file: " + file.getAbsolutePath() + " created. ]");
@@ -67,25 +83,45 @@ public class CacheBlock {
         }
     }
 
+    /**
+     * Creat cache block of a version packed in a segment, with no file of
+     * its own.
+     *
+     * @param index        index the path id is interned in
+     * @param pathId       interned relative path to server file
+     * @param version      current version number
+     * @param packedLength length of the version
+     */
+    public CacheBlock(VersionIndex index, int pathId, long version, long packedLength) {
+        this.index = index;
+        this.pathId = pathId;
+        this.version = version;
+        this.isDirty = false;
+        this.isValid = true;
+        this.refCnt = 0;
+        this.packedLength = packedLength;
+    }
+
     /**
      * Make a write copy of the original file into the cache, not linking it
      * into the double linked list. Write copy's life span is from open() to
      * close().
      *
-     * @param cacheRoot     cache directory + writeCopyPath
-     * @param origPath      original relative path
+     * @param index         index the path id is interned in
+     * @param pathId        interned original relative path
      * @param writeCopyPath relative write copy path
      */
-    public CacheBlock(String cacheRoot, String origPath, String writeCopyPath, long version) {
-        this.origPath = origPath;
-        this.suffixPath = writeCopyPath;
+    public CacheBlock(VersionIndex index, int pathId, String writeCopyPath, long version) {
+        this.index = index;
+        this.pathId = pathId;
+        this.writeCopyPath = writeCopyPath;
         this.version = -1;
-        var cachePath = cacheRoot + writeCopyPath;
-        this.file = new File(cachePath);
+        var cachePath = index.getCacheRoot() + writeCopyPath;
+        File file = getFile();
         this.isDirty = false;
         this.isValid = true;
         this.refCnt = 0;
-        File origFile = new File(cacheRoot + origPath + "_" + version);
+        File origFile = new File(index.getCacheRoot() + genSuffixPath(getOrigPath(), version));
         try {
             System.err.println(" Copy from [ "
                     + origFile.getAbsolutePath()
@@ -99,6 +135,10 @@ public class CacheBlock {
         }
     }
 
+    public long getVersion() {
+        return version;
+    }
+
     public void setVersion(long version) {
         this.version = version;
     }
@@ -111,32 +151,68 @@ public class CacheBlock {
         isDirty = dirty;
     }
 
+    public int getPathId() {
+        return pathId;
+    }
+
     public String getSuffixPath() {
-        return suffixPath;
+        return writeCopyPath != null ? writeCopyPath : genSuffixPath(getOrigPath(), version);
     }
 
     public File getFile() {
-        return file;
+        return new File(index.getCacheRoot() + getSuffixPath());
     }
 
     public long getFileSize() {
-        return file.length();
+        return isPacked() ? packedLength : getFile().length();
+    }
+
+    public boolean isPacked() {
+        return packedLength >= 0;
+    }
+
+    /**
+     * Mark the version as moved out of its segment into its own file.
+     */
+    public void setUnpacked() {
+        packedLength = -1;
     }
 
     public String getOrigPath() {
-        return origPath;
+        return index.getPath(pathId);
+    }
+
+    /**
+     * Account the copy as private to this proxy, or as shared again.
+     *
+     * @param bytes bytes accounted as private, -1 if shared
+     * @return bytes accounted as private before, -1 if none were
+     */
+    public synchronized long setPrivateBytes(long bytes) {
+        long old = privateBytes;
+        privateBytes = bytes;
+        return old;
+    }
+
+    public synchronized boolean isPrivate() {
+        return privateBytes >= 0;
     }
 
     /**
      * Delete the file on disk linked to the cache block.
      */
     public boolean deleteFile() {
+        File file = getFile();
         System.err.println("[ Deleting file: " + file.getAbsolutePath() + " ]");
         return file.delete();
     }
 
+    public synchronized int getRefCnt() {
+        return refCnt;
+    }
+
     public boolean isOpen() {
-        System.err.println(refCnt + " clients opening " + file.getPath() + ". ");
+        System.err.println(refCnt + " clients opening " + getSuffixPath() + ". ");
         return refCnt > 0;
     }
 
@@ -169,15 +245,33 @@ public class CacheBlock {
         isValid = valid;
     }
 
+    /**
+     * Move the file of the block, before its version is changed to match.
+     *
+     * @param newFile file to rename to
+     */
     public void renameFile(File newFile) {
+        File file = getFile();
         if (!file.renameTo(newFile)) {
             System.err.println(" Rename error. ");
         }
         System.err.println("Old file exists: " + file.exists());
         System.err.println("New file exists: " + newFile.exists());
         file.delete();
-        file = newFile;
-        suffixPath = file.getName();
-        System.err.println("filename: " + file.getName());
+        System.err.println("filename: " + newFile.getName());
+    }
+
+    /**
+     * Copy the file of the block, before its version is changed to match,
+     * leaving the old file in place for other processes still reading it.
+     *
+     * @param newFile file to copy to
+     */
+    public void copyFile(File newFile) {
+        try {
+            Files.copy(getFile().toPath(), newFile.toPath(), REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 }
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Bounded cache of file chunks served by the server, keyed by (path, version,
+ * offset, length). Chunk contents are kept off-heap in direct buffers.
+ *
+ * <p>When a popular file is updated every proxy refetches it; identical
+ * concurrent requests for a chunk share one disk read, and later ones are
+ * served from memory. Entries of a path are dropped when its version is
+ * bumped or the file is changed behind the server's back.
+ */
+public class ChunkCache {
+    private final long capacity;
+    private final int maxChunkSize;
+    private long currSize = 0;
+    /**
+     * Maps chunk key to its contents, in LRU order
+     */
+    private final LinkedHashMap<Key, ByteBuffer> chunkMap;
+    /**
+     * Maps normalized absolute path to the keys cached for it
+     */
+    private final Map<String, Set<Key>> pathKeys;
+    /**
+     * Disk reads in progress, shared by identical concurrent requests
+     */
+    private final Map<Key, CompletableFuture<ByteBuffer>> inFlight;
+
+    public ChunkCache(long capacity, int maxChunkSize) {
+        this.capacity = capacity;
+        this.maxChunkSize = maxChunkSize;
+        this.chunkMap = new LinkedHashMap<>(16, 0.75f, true);
+        this.pathKeys = new ConcurrentHashMap<>();
+        this.inFlight = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Get a chunk, from cache if present, otherwise through the loader. Only
+     * one load runs for identical concurrent requests.
+     *
+     * @param absPath   absolute path on server
+     * @param version   version the chunk is read under
+     * @param offset    offset of the chunk in the file
+     * @param nbytes    length of the chunk
+     * @param loader    reads the chunk from disk
+     * @param isCurrent tells if <code>version</code> is still the latest, so
+     *                  the loaded chunk may be cached
+     * @return chunk contents
+     * @throws IOException if the loader fails
+     */
+    public byte[] get(String absPath,
+                      long version,
+                      long offset,
+                      int nbytes,
+                      Loader loader,
+                      BooleanSupplier isCurrent) throws IOException {
+        if (nbytes > maxChunkSize) {
+            return toBytes(loader.load(false));
+        }
+        Key key = new Key(normalize(absPath), version, offset, nbytes);
+        ByteBuffer chunk;
+        synchronized (this) {
+            chunk = chunkMap.get(key);
+        }
+        if (chunk != null) {
+            return toBytes(chunk);
+        }
+
+        CompletableFuture<ByteBuffer> load = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> running = inFlight.putIfAbsent(key, load);
+        if (running != null) {
+            return toBytes(await(running));
+        }
+        // Only chunks of the latest version are cached off-heap
+        boolean cacheable = isCurrent.getAsBoolean();
+        try {
+            chunk = loader.load(cacheable);
+            if (cacheable) {
+                synchronized (this) {
+                    // A version bump after the load started makes the chunk unsafe
+                    if (isCurrent.getAsBoolean() && !chunkMap.containsKey(key)) {
+                        chunkMap.put(key, chunk);
+                        pathKeys.computeIfAbsent(key.path, p -> new HashSet<>()).add(key);
+                        currSize += nbytes;
+                        sizeControl();
+                    }
+                }
+            }
+            load.complete(chunk);
+        } catch (IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            // Cached first, so a concurrent request always finds the chunk
+            inFlight.remove(key);
+        }
+        return toBytes(chunk);
+    }
+
+    /**
+     * Drop all cached chunks of a path, called on version bump, unlink, or
+     * an out-of-band change.
+     *
+     * @param absPath absolute path on server
+     */
+    public synchronized void invalidate(String absPath) {
+        Set<Key> keys = pathKeys.remove(normalize(absPath));
+        if (keys == null) {
+            return;
+        }
+        for (Key key : keys) {
+            if (chunkMap.remove(key) != null) {
+                currSize -= key.nbytes;
+            }
+        }
+    }
+
+    /**
+     * Drop all cached chunks of files under a directory, called when changes
+     * below it may have been missed.
+     *
+     * @param absDir absolute directory path on server
+     */
+    public synchronized void invalidateUnder(String absDir) {
+        String prefix = normalize(absDir) + "/";
+        for (String path : pathKeys.keySet()) {
+            if (path.startsWith(prefix)) {
+                invalidate(path);
+            }
+        }
+    }
+
+    /**
+     * Evict least recently used chunks until under capacity.
+     */
+    private void sizeControl() {
+        var it = chunkMap.entrySet().iterator();
+        while (currSize > capacity && it.hasNext()) {
+            Key key = it.next().getKey();
+            it.remove();
+            currSize -= key.nbytes;
+            Set<Key> keys = pathKeys.get(key.path);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    pathKeys.remove(key.path);
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer await(CompletableFuture<ByteBuffer> load) throws IOException {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static byte[] toBytes(ByteBuffer chunk) {
+        byte[] buf = new byte[chunk.capacity()];
+        chunk.duplicate().clear().get(buf);
+        return buf;
+    }
+
+    private static String normalize(String absPath) {
+        return Paths.get(absPath).normalize().toString();
+    }
+
+    /**
+     * Reads a chunk from disk.
+     */
+    public interface Loader {
+        /**
+         * @param direct true to read into a direct buffer, for a chunk that
+         *               is going to be cached
+         * @return buffer holding the chunk
+         * @throws IOException if the chunk cannot be read
+         */
+        ByteBuffer load(boolean direct) throws IOException;
+    }
+
+    private static class Key {
+        private final String path;
+        private final long version;
+        private final long offset;
+        private final int nbytes;
+
+        Key(String path, long version, long offset, int nbytes) {
+            this.path = path;
+            this.version = version;
+            this.offset = offset;
+            this.nbytes = nbytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return version == key.version
+                    && offset == key.offset
+                    && nbytes == key.nbytes
+                    && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, version, offset, nbytes);
+        }
+    }
+}
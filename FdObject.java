@@ -3,11 +3,20 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 
 /**
- * A class object that contains a path, and random access file.
+ * A class object that contains a path, and random access file, or for
+ * read-only sessions a position in the shared source of the read copy.
  * This object has one to one mapping with a fd given by the proxy,
  * and is unique to each open-close session.
+ *
+ * <p>Sessions on a random access file are buffered: small writes are
+ * coalesced and flushed when the buffer fills, on a non-contiguous write,
+ * on seek, read and close; small reads are served from a read-ahead buffer.
  */
 public class FdObject {
+    /**
+     * Bytes buffered per direction; larger requests bypass the buffers
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
     /**
      * Relative path to RAF (with suffix)
      */
@@ -16,7 +25,32 @@ public class FdObject {
      * Random access file related to the session
      */
     private RandomAccessFile randomAccessFile;
+    /**
+     * Shared source of a read-only session, null otherwise
+     */
+    private ReadSource readSource;
+    /**
+     * Position of the session in its file
+     */
+    private long position;
     private boolean isDirectory;
+    private boolean writable;
+    /**
+     * Set on the first write of the session
+     */
+    private boolean dirty;
+    /**
+     * Writes not yet flushed, covering [writeStart, writeStart + writeLen)
+     */
+    private byte[] writeBuf;
+    private long writeStart;
+    private int writeLen;
+    /**
+     * Read-ahead data, covering [readStart, readStart + readLen)
+     */
+    private byte[] readBuf;
+    private long readStart;
+    private int readLen;
 
     /**
      * Initialize the FdObject as a file, with mode specified for the
@@ -30,6 +64,18 @@ public class FdObject {
     public FdObject(String cacheRoot, String path, String mode) throws FileNotFoundException {
         this.path = path;
         this.randomAccessFile = new RandomAccessFile(cacheRoot + path, mode);
+        this.writable = mode.contains("w");
+    }
+
+    /**
+     * Initialize the FdObject as a read-only session on a shared read copy.
+     *
+     * @param path       relative path
+     * @param readSource source of the read copy, shared with other sessions
+     */
+    public FdObject(String path, ReadSource readSource) {
+        this.path = path;
+        this.readSource = readSource;
     }
 
     /**
@@ -54,11 +100,135 @@ public class FdObject {
         return this.isDirectory;
     }
 
-    public boolean closeRAF() {
-        if (isDirectory) {
+    public ReadSource getReadSource() {
+        return this.readSource;
+    }
+
+    /**
+     * Read from the current position and advance it.
+     *
+     * @param buf buffer to fill
+     * @return number of bytes read, -1 at end of file
+     * @throws IOException if the read fails
+     */
+    public int read(byte[] buf) throws IOException {
+        if (readSource != null) {
+            int rd = readSource.read(position, buf);
+            if (rd > 0) {
+                position += rd;
+            }
+            return rd;
+        }
+        flushWrites();
+        if (position < readStart || position >= readStart + readLen) {
+            randomAccessFile.seek(position);
+            if (buf.length >= BUFFER_SIZE) {
+                int rd = randomAccessFile.read(buf);
+                if (rd > 0) {
+                    position += rd;
+                }
+                return rd;
+            }
+            if (readBuf == null) {
+                readBuf = new byte[BUFFER_SIZE];
+            }
+            int rd = randomAccessFile.read(readBuf, 0, BUFFER_SIZE);
+            readStart = position;
+            readLen = Math.max(rd, 0);
+            if (rd <= 0) {
+                return -1;
+            }
+        }
+        int n = (int) Math.min(buf.length, readStart + readLen - position);
+        System.arraycopy(readBuf, (int) (position - readStart), buf, 0, n);
+        position += n;
+        return n;
+    }
+
+    /**
+     * Write at the current position and advance it.
+     *
+     * @param buf bytes to write
+     * @throws IOException if the session is read-only or a flush fails
+     */
+    public void write(byte[] buf) throws IOException {
+        if (!writable) {
+            throw new IOException("Not open for writing: " + path);
+        }
+        // Read-ahead may overlap the written range
+        readLen = 0;
+        if (writeLen > 0
+                && (writeStart + writeLen != position
+                || writeLen + buf.length > BUFFER_SIZE)) {
+            flushWrites();
+        }
+        if (buf.length >= BUFFER_SIZE) {
+            randomAccessFile.seek(position);
+            randomAccessFile.write(buf);
+        } else {
+            if (writeBuf == null) {
+                writeBuf = new byte[BUFFER_SIZE];
+            }
+            if (writeLen == 0) {
+                writeStart = position;
+            }
+            System.arraycopy(buf, 0, writeBuf, writeLen, buf.length);
+            writeLen += buf.length;
+        }
+        position += buf.length;
+    }
+
+    /**
+     * Mark the session as having written, once.
+     *
+     * @return true on the first call of the session
+     */
+    public boolean markDirty() {
+        if (dirty) {
             return false;
         }
+        dirty = true;
+        return true;
+    }
+
+    private void flushWrites() throws IOException {
+        if (writeLen > 0) {
+            randomAccessFile.seek(writeStart);
+            randomAccessFile.write(writeBuf, 0, writeLen);
+            writeLen = 0;
+        }
+    }
+
+    public void seek(long pos) throws IOException {
+        if (readSource == null) {
+            flushWrites();
+        }
+        position = pos;
+    }
+
+    public long getFilePointer() {
+        return position;
+    }
+
+    public long length() throws IOException {
+        if (readSource != null) {
+            return readSource.length();
+        }
+        return Math.max(randomAccessFile.length(), writeStart + writeLen);
+    }
+
+    /**
+     * Write out buffered writes and close the file.
+     *
+     * @return false if buffered writes could not be written out, so the file
+     * is missing bytes write() accepted
+     */
+    public boolean closeRAF() {
+        if (isDirectory || readSource != null) {
+            return true;
+        }
         try {
+            flushWrites();
             this.randomAccessFile.close();
         } catch (IOException e) {
             e.printStackTrace(System.err);
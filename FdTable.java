@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open file descriptors of one client, in an array indexed by descriptor,
+ * so each call finds its session with one array read. Closed descriptors
+ * go on a free list and are handed out again, so descriptors stay small
+ * and the table does not grow with the number of opens over time.
+ *
+ * <p>The table is split into pages allocated on first use, so it never has
+ * to be copied to grow. Allocation and release take no lock: the free list
+ * is a stack updated by compare-and-set, its top tagged with a counter so
+ * a slot popped and pushed back in between is not mistaken for the old top.
+ */
+public class FdTable {
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    /**
+     * Pages at most, bounding the descriptors open at once per client
+     */
+    private static final int MAX_PAGES = 1024;
+    private static final int MAX_SLOTS = PAGE_SIZE * MAX_PAGES;
+    private static final int NONE = -1;
+
+    private final int firstFd;
+    private final AtomicReferenceArray<Page> pages;
+    /**
+     * Top of the free list: tag in the high 32 bits, slot in the low ones
+     */
+    private final AtomicLong freeTop;
+    /**
+     * Slots handed out at least once
+     */
+    private final AtomicInteger highWater;
+
+    private static class Page {
+        private final AtomicReferenceArray<FdObject> fdObjects =
+                new AtomicReferenceArray<>(PAGE_SIZE);
+        /**
+         * Slot below each free slot on the free list
+         */
+        private final AtomicIntegerArray nextFree = new AtomicIntegerArray(PAGE_SIZE);
+    }
+
+    /**
+     * @param firstFd lowest descriptor handed out
+     */
+    public FdTable(int firstFd) {
+        this.firstFd = firstFd;
+        this.pages = new AtomicReferenceArray<>(MAX_PAGES);
+        this.freeTop = new AtomicLong(top(0, NONE));
+        this.highWater = new AtomicInteger();
+    }
+
+    /**
+     * Give a session a descriptor.
+     *
+     * @param fdObject session opened
+     * @return descriptor, or -1 if the client has too many open
+     */
+    public int allocate(FdObject fdObject) {
+        int slot = popFree();
+        if (slot == NONE) {
+            if (highWater.get() >= MAX_SLOTS) {
+                return -1;
+            }
+            slot = highWater.getAndIncrement();
+            if (slot >= MAX_SLOTS) {
+                return -1;
+            }
+        }
+        page(slot).fdObjects.set(slot & PAGE_MASK, fdObject);
+        return firstFd + slot;
+    }
+
+    /**
+     * @param fd descriptor
+     * @return session of the descriptor, or null if it is not open
+     */
+    public FdObject get(int fd) {
+        int slot = fd - firstFd;
+        if (slot < 0 || slot >= MAX_SLOTS) {
+            return null;
+        }
+        Page page = pages.get(slot >>> PAGE_BITS);
+        return page == null ? null : page.fdObjects.get(slot & PAGE_MASK);
+    }
+
+    /**
+     * Close a descriptor, freeing it for reuse.
+     *
+     * @param fd descriptor
+     * @return session of the descriptor, or null if it was not open
+     */
+    public FdObject remove(int fd) {
+        int slot = fd - firstFd;
+        if (slot < 0 || slot >= MAX_SLOTS) {
+            return null;
+        }
+        Page page = pages.get(slot >>> PAGE_BITS);
+        if (page == null) {
+            return null;
+        }
+        FdObject fdObject = page.fdObjects.getAndSet(slot & PAGE_MASK, null);
+        if (fdObject != null) {
+            pushFree(slot);
+        }
+        return fdObject;
+    }
+
+    /**
+     * Close all descriptors.
+     *
+     * @return sessions that were open
+     */
+    public List<FdObject> removeAll() {
+        List<FdObject> fdObjects = new ArrayList<>();
+        int slots = Math.min(highWater.get(), MAX_SLOTS);
+        for (int slot = 0; slot < slots; slot++) {
+            FdObject fdObject = remove(firstFd + slot);
+            if (fdObject != null) {
+                fdObjects.add(fdObject);
+            }
+        }
+        return fdObjects;
+    }
+
+    private Page page(int slot) {
+        int index = slot >>> PAGE_BITS;
+        Page page = pages.get(index);
+        if (page == null) {
+            pages.compareAndSet(index, null, new Page());
+            page = pages.get(index);
+        }
+        return page;
+    }
+
+    private void pushFree(int slot) {
+        Page page = page(slot);
+        while (true) {
+            long top = freeTop.get();
+            page.nextFree.set(slot & PAGE_MASK, slotOf(top));
+            if (freeTop.compareAndSet(top, top(tagOf(top) + 1, slot))) {
+                return;
+            }
+        }
+    }
+
+    private int popFree() {
+        while (true) {
+            long top = freeTop.get();
+            int slot = slotOf(top);
+            if (slot == NONE) {
+                return NONE;
+            }
+            int next = page(slot).nextFree.get(slot & PAGE_MASK);
+            if (freeTop.compareAndSet(top, top(tagOf(top) + 1, next))) {
+                return slot;
+            }
+        }
+    }
+
+    private static long top(int tag, int slot) {
+        return ((long) tag << 32) | (slot & 0xFFFFFFFFL);
+    }
+
+    private static int tagOf(long top) {
+        return (int) (top >>> 32);
+    }
+
+    private static int slotOf(long top) {
+        return (int) top;
+    }
+}
@@ -9,6 +9,15 @@ public class FileMeta implements Serializable {
     private boolean isBadFile;
     private long version;
     private long length;
+    /**
+     * Server mutation epoch at the time the meta data was collected
+     */
+    private long epoch;
+    /**
+     * Identifies the server process that collected the meta data, since the
+     * epoch starts over when the server restarts
+     */
+    private long incarnation;
 
     public boolean isDirectory() {
         return isDirectory;
@@ -26,6 +35,10 @@ public class FileMeta implements Serializable {
         this.fileExists = fileExists;
     }
 
+    public boolean isBadFile() {
+        return isBadFile;
+    }
+
     public void setBadFile(boolean badFile) {
         isBadFile = badFile;
     }
@@ -45,4 +58,20 @@ public class FileMeta implements Serializable {
     public void setVersion(long version) {
         this.version = version;
     }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    public long getIncarnation() {
+        return incarnation;
+    }
+
+    public void setIncarnation(long incarnation) {
+        this.incarnation = incarnation;
+    }
 }
@@ -1,27 +1,118 @@
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
 public class LRUCache {
+    /**
+     * Index file in the cache root, shared by all proxies using the root
+     */
+    private static final String INDEX_FILE = ".cache_index";
+    private static final int INDEX_SLOTS = 16384;
+    /**
+     * Keeps write copy names unique among proxies sharing the cache root
+     */
+    private static final long PID = ProcessHandle.current().pid();
+    /**
+     * Appended to the suffix path of a version while it is downloaded. The
+     * length of the file is the prefix fetched so far.
+     */
+    public static final String PART_SUFFIX = ".part";
+    /**
+     * Largest read copy packed into a segment instead of a file of its own,
+     * lowered for small caches
+     */
+    public static final int PACK_MAX = 64 * 1024;
+    /**
+     * Segments are at most this many times smaller than the capacity, so
+     * one segment never takes a large share of a small cache
+     */
+    private static final int SEGMENTS_PER_CACHE = 16;
+    /**
+     * Fraction of the capacity dead segment space may take before size
+     * control compacts all segments, ahead of evicting anything
+     */
+    private static final double SEGMENT_DEAD_RATIO = 0.25;
+    /**
+     * Changes to the versions served to peers kept for them to catch up on
+     */
+    private static final int PEER_LOG_CAPACITY = 10000;
     private final int cacheCapacity;
-    private int currSize = 0;
+    /**
+     * Largest read copy packed into a segment
+     */
+    private final int packMax;
     private final String cacheRoot;
     private final CacheBlock head;
     private final CacheBlock tail;
     /**
-     * Maps relative suffix path to cache block
+     * Maps relative write copy path to its block
+     */
+    private final Map<String, CacheBlock> writeCopies;
+    /**
+     * Interned original paths, their current versions and the block of
+     * every read copy
      */
-    private final Map<String, CacheBlock> cacheBlockMap;
+    private final VersionIndex versionIndex;
     /**
-     * Maps relative original path to version
+     * Maps relative original path to its number of write copies not yet
+     * written back; such read copies may be rewritten in place
      */
-    private final Map<String, Long> pathVersion;
+    private final Map<String, Integer> pendingWrites;
+    /**
+     * Read copies of all proxies using the cache root, and the bytes they use
+     */
+    private final SharedCacheIndex sharedIndex;
+    /**
+     * Maps relative suffix path of a copy only this proxy can use, such as
+     * a write copy, to the bytes accounted for it in the shared index. Read
+     * copies keep their private bytes in their block.
+     */
+    private final Map<String, Long> privateBytes;
+    /**
+     * Maps relative original path to the version partially downloaded
+     */
+    private final Map<String, Long> partialVersion;
+    /**
+     * Relative paths of partial downloads in progress, which are not evicted
+     */
+    private final Set<String> activePartials;
+    /**
+     * Small read copies, packed into segments. They are private to this
+     * proxy.
+     */
+    private final SegmentStore segmentStore;
+    /**
+     * Changes to the versions served to peers, so they pull deltas instead
+     * of the whole version index
+     */
+    private final VersionLog peerLog;
+    /**
+     * Told when a read copy file is deleted or renamed
+     */
+    private RemovalListener removalListener = absPath -> {
+    };
 
-    public LRUCache(int cacheCapacity, String cacheRoot) {
+    /**
+     * Called when a read copy file is deleted or renamed, so layers above
+     * the disk cache drop their copies of it.
+     */
+    public interface RemovalListener {
+        void removed(String absPath);
+    }
+
+    public LRUCache(int cacheCapacity, String cacheRoot) throws IOException {
         this.cacheCapacity = cacheCapacity;
         this.cacheRoot = cacheRoot;
         this.head = new CacheBlock();
@@ -30,8 +121,68 @@ public class LRUCache {
         head.next = tail;
         tail.prev = head;
         tail.next = null;
-        cacheBlockMap = new ConcurrentHashMap<>();
-        pathVersion = new ConcurrentHashMap<>();
+        writeCopies = new ConcurrentHashMap<>();
+        versionIndex = new VersionIndex(cacheRoot);
+        pendingWrites = new ConcurrentHashMap<>();
+        privateBytes = new ConcurrentHashMap<>();
+        partialVersion = new ConcurrentHashMap<>();
+        activePartials = ConcurrentHashMap.newKeySet();
+        sharedIndex = new SharedCacheIndex(cacheRoot + INDEX_FILE, INDEX_SLOTS);
+        long segmentSize = Math.min(SegmentStore.SEGMENT_SIZE,
+                Math.max(1, cacheCapacity / SEGMENTS_PER_CACHE));
+        segmentStore = new SegmentStore(cacheRoot, segmentSize);
+        packMax = (int) Math.min(PACK_MAX, segmentSize);
+        peerLog = new VersionLog(PEER_LOG_CAPACITY);
+        adoptPartials();
+        sizeControl();
+    }
+
+    /**
+     * Take over partial downloads left in the cache root by proxies that
+     * are no longer running, so they count against capacity, may be evicted,
+     * and are resumed by the next open of their version. Of several
+     * versions of a file, only the newest is kept.
+     */
+    private void adoptPartials() {
+        Path root = Paths.get(cacheRoot);
+        List<Path> partFiles;
+        try (Stream<Path> files = Files.walk(root)) {
+            partFiles = files.filter(f -> f.toString().endsWith(PART_SUFFIX))
+                    .filter(Files::isRegularFile)
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            return;
+        }
+        for (Path partFile : partFiles) {
+            String partPath = root.relativize(partFile).toString();
+            String suffixPath = partPath.substring(0, partPath.length() - PART_SUFFIX.length());
+            int sep = suffixPath.lastIndexOf('_');
+            long version;
+            try {
+                version = Long.parseLong(suffixPath.substring(sep + 1));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                continue;
+            }
+            String origPath = suffixPath.substring(0, sep);
+            // Skip downloads another live proxy is still making
+            if (!sharedIndex.claim(origPath, version)) {
+                continue;
+            }
+            sharedIndex.unclaim(origPath, version);
+            Long newest = partialVersion.get(origPath);
+            if (newest != null && newest > version) {
+                System.err.println("[ Delete partial download: " + partPath + " ]");
+                partFile.toFile().delete();
+                continue;
+            }
+            if (newest != null) {
+                dropPartial(origPath, newest);
+            }
+            System.err.println("[ Adopt partial download: " + partPath + " ]");
+            partialVersion.put(origPath, version);
+            countPrivate(partPath, partFile.toFile().length());
+        }
     }
 
     /**
@@ -43,14 +194,18 @@ public class LRUCache {
      * @return relative write copy path
      */
     public synchronized String putWriteCopy(String path, int code, long version) {
-        String writeCopyPath = path + "_write_" + code;
+        String writeCopyPath = path + "_write_" + PID + "_" + code;
+        // The write copy is made from the read copy file
+        unpack(versionIndex.getBlock(path, version));
         // Creates write copy in cache dir but not put it in double linked list.
-        CacheBlock cacheBlock = new CacheBlock(cacheRoot,
-                path,
+        CacheBlock cacheBlock = new CacheBlock(versionIndex,
+                versionIndex.intern(path),
                 writeCopyPath,
                 version);
-        cacheBlockMap.put(writeCopyPath, cacheBlock);
-        currSize += cacheBlock.getFileSize();
+        writeCopies.put(writeCopyPath, cacheBlock);
+        pendingWrites.merge(path, 1, Integer::sum);
+        advertise(path);
+        countPrivate(writeCopyPath, cacheBlock.getFileSize());
         sizeControl();
         return writeCopyPath;
     }
@@ -64,21 +219,347 @@ public class LRUCache {
      * @param version  current version
      */
     public synchronized void put(String origPath, long version) {
-        if (pathVersion.containsKey(origPath)
-                && pathVersion.get(origPath) == version) {
+        if (versionIndex.getVersion(origPath) == version) {
             System.err.println("[ " + origPath + "Already in cache. ]");
             return;
         }
-        CacheBlock cacheBlock = new CacheBlock(cacheRoot, origPath, version);
-        cacheBlockMap.put(cacheBlock.getSuffixPath(), cacheBlock);
+        CacheBlock cacheBlock = new CacheBlock(versionIndex, versionIndex.intern(origPath), version);
+        versionIndex.put(cacheBlock);
         System.err.println("[ Put: " + cacheBlock.getSuffixPath() + " ]");
         setInvalid(origPath, version);
-        pathVersion.put(origPath, version);
-        currSize += cacheBlock.getFileSize();
+        versionIndex.setVersion(cacheBlock.getPathId(), version);
+        advertise(origPath);
+        share(cacheBlock);
+        addBlock(cacheBlock);
+        sizeControl();
+    }
+
+    /**
+     * Put a small downloaded version into the cache, packed into a segment.
+     * Like {@link #put}, older versions are invalidated.
+     *
+     * @param origPath relative original path on server
+     * @param version  version downloaded
+     * @param data     contents of the version
+     * @throws IOException if the segment cannot be written
+     */
+    public synchronized void putPacked(String origPath, long version, byte[] data)
+            throws IOException {
+        if (versionIndex.getVersion(origPath) == version) {
+            System.err.println("[ " + origPath + "Already in cache. ]");
+            return;
+        }
+        CacheBlock cacheBlock = new CacheBlock(versionIndex,
+                versionIndex.intern(origPath),
+                version,
+                data.length);
+        segmentStore.put(cacheBlock, data);
+        versionIndex.put(cacheBlock);
+        System.err.println("[ Put packed: " + cacheBlock.getSuffixPath() + " ]");
+        setInvalid(origPath, version);
+        versionIndex.setVersion(cacheBlock.getPathId(), version);
+        advertise(origPath);
+        countPrivate(cacheBlock, data.length);
         addBlock(cacheBlock);
         sizeControl();
     }
 
+    /**
+     * @return largest read copy packed into a segment instead of a file of
+     * its own
+     */
+    public int getPackMax() {
+        return packMax;
+    }
+
+    /**
+     * @param suffixPath relative suffix path of a read copy
+     * @return length of the read copy if it is packed, or -1 if it has a
+     * file of its own
+     */
+    public long packedLength(String suffixPath) {
+        CacheBlock cacheBlock = versionIndex.getBlockBySuffixPath(suffixPath);
+        return cacheBlock == null ? -1 : segmentStore.length(cacheBlock);
+    }
+
+    /**
+     * Read a packed read copy for a read-only session.
+     *
+     * @param suffixPath relative suffix path of the read copy
+     * @return contents, or null if the read copy has a file of its own
+     * @throws IOException if the segment cannot be read
+     */
+    public byte[] readPacked(String suffixPath) throws IOException {
+        CacheBlock cacheBlock = versionIndex.getBlockBySuffixPath(suffixPath);
+        return cacheBlock == null ? null : segmentStore.read(cacheBlock);
+    }
+
+    /**
+     * Read a packed read copy, such as one pinned for a peer.
+     *
+     * @param cacheBlock block of the read copy
+     * @return contents, or null if the read copy has a file of its own
+     * @throws IOException if the segment cannot be read
+     */
+    public byte[] readPacked(CacheBlock cacheBlock) throws IOException {
+        return cacheBlock.isPacked() ? segmentStore.read(cacheBlock) : null;
+    }
+
+    /**
+     * Move a packed read copy into a file of its own, before something
+     * works on the file directly.
+     */
+    private void unpack(CacheBlock cacheBlock) {
+        if (cacheBlock == null || !cacheBlock.isPacked()) {
+            return;
+        }
+        try {
+            byte[] data = segmentStore.read(cacheBlock);
+            Files.write(cacheBlock.getFile().toPath(), data);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            return;
+        }
+        segmentStore.remove(cacheBlock);
+        countDeadSpace();
+        cacheBlock.setUnpacked();
+        System.err.println("[ Unpacked: " + cacheBlock.getSuffixPath() + " ]");
+    }
+
+    /**
+     * Delete the contents of a read copy, in its segment or its own file.
+     */
+    private boolean deleteCopy(CacheBlock cacheBlock) {
+        if (cacheBlock.isPacked()) {
+            segmentStore.remove(cacheBlock);
+            countDeadSpace();
+            return true;
+        }
+        return cacheBlock.deleteFile();
+    }
+
+    /**
+     * Use a read copy another proxy sharing the cache root already fetched,
+     * instead of downloading it again.
+     *
+     * @param origPath relative original path on server
+     * @param version  version wanted
+     * @return true if the copy is now in this cache
+     */
+    public synchronized boolean adopt(String origPath, long version) {
+        if (!sharedIndex.touch(origPath, version)
+                || !new File(cacheRoot + CacheBlock.genSuffixPath(origPath, version)).exists()) {
+            return false;
+        }
+        CacheBlock cacheBlock = new CacheBlock(versionIndex, versionIndex.intern(origPath), version);
+        versionIndex.put(cacheBlock);
+        System.err.println("[ Adopted: " + cacheBlock.getSuffixPath() + " ]");
+        setInvalid(origPath, version);
+        versionIndex.setVersion(cacheBlock.getPathId(), version);
+        advertise(origPath);
+        addBlock(cacheBlock);
+        return true;
+    }
+
+    /**
+     * Claim the download of a version among the proxies sharing the cache
+     * root. The claim ends when the copy is put in the cache, or with
+     * {@link #unclaimDownload}.
+     *
+     * @param origPath relative original path on server
+     * @param version  version to download
+     * @return false if another proxy is downloading it
+     */
+    public boolean claimDownload(String origPath, long version) {
+        return sharedIndex.claim(origPath, version);
+    }
+
+    /**
+     * Give up the claim of a download that did not finish.
+     *
+     * @param origPath relative original path on server
+     * @param version  version downloaded
+     */
+    public void unclaimDownload(String origPath, long version) {
+        sharedIndex.unclaim(origPath, version);
+    }
+
+    /**
+     * Publish a complete read copy in the shared index, or account it as
+     * private if the index cannot hold it.
+     */
+    private void share(CacheBlock cacheBlock) {
+        long size = cacheBlock.getFileSize();
+        if (!sharedIndex.add(cacheBlock.getOrigPath(),
+                cacheBlock.getVersion(),
+                size,
+                cacheBlock.getRefCnt())) {
+            countPrivate(cacheBlock, size);
+        }
+    }
+
+    /**
+     * Start or resume downloading a version. Partial downloads of other
+     * versions of the file are dropped. The whole length is accounted as
+     * private until the download completes, so room is made for it up
+     * front.
+     *
+     * @param origPath relative original path on server
+     * @param version  version downloaded
+     * @param length   length of the version
+     * @return bytes already downloaded, to resume from
+     */
+    public synchronized long beginPartial(String origPath, long version, long length) {
+        Long oldVersion = partialVersion.get(origPath);
+        if (oldVersion != null && oldVersion != version) {
+            dropPartial(origPath, oldVersion);
+        }
+        String partPath = CacheBlock.genSuffixPath(origPath, version) + PART_SUFFIX;
+        partialVersion.put(origPath, version);
+        activePartials.add(partPath);
+        Long counted = privateBytes.get(partPath);
+        if (counted == null || counted < length) {
+            // An adopted part file only counted what it held so far
+            releasePrivate(partPath);
+            countPrivate(partPath, length);
+            sizeControl();
+        }
+        long done = new File(cacheRoot + partPath).length();
+        return done <= length ? done : 0;
+    }
+
+    /**
+     * Stop downloading a version, keeping what was fetched so a later open
+     * resumes from it. It may be evicted until then.
+     *
+     * @param origPath relative original path on server
+     * @param version  version downloaded
+     */
+    public void suspendPartial(String origPath, long version) {
+        activePartials.remove(CacheBlock.genSuffixPath(origPath, version) + PART_SUFFIX);
+    }
+
+    /**
+     * Turn a complete download into the read copy file, to be put in the
+     * cache.
+     *
+     * @param origPath relative original path on server
+     * @param version  version downloaded
+     * @throws IOException if the file cannot be renamed
+     */
+    public synchronized void completePartial(String origPath, long version) throws IOException {
+        String suffixPath = CacheBlock.genSuffixPath(origPath, version);
+        File partFile = new File(cacheRoot + suffixPath + PART_SUFFIX);
+        File file = new File(cacheRoot + suffixPath);
+        forgetPartial(origPath, version);
+        // Another session of this proxy may have finished the same download
+        if (!partFile.renameTo(file) && !file.exists()) {
+            throw new IOException("Cannot rename " + partFile);
+        }
+    }
+
+    /**
+     * Delete a partial download, when its version is gone on the server.
+     *
+     * @param origPath relative original path on server
+     * @param version  version downloaded
+     */
+    public synchronized void dropPartial(String origPath, long version) {
+        String partPath = CacheBlock.genSuffixPath(origPath, version) + PART_SUFFIX;
+        forgetPartial(origPath, version);
+        System.err.println("[ Delete partial download: " + partPath + " ]");
+        new File(cacheRoot + partPath).delete();
+    }
+
+    private void forgetPartial(String origPath, long version) {
+        String partPath = CacheBlock.genSuffixPath(origPath, version) + PART_SUFFIX;
+        partialVersion.remove(origPath, version);
+        activePartials.remove(partPath);
+        releasePrivate(partPath);
+    }
+
+    /**
+     * Delete a partial download no session is fetching.
+     *
+     * @return false if there is none
+     */
+    private boolean evictPartial() {
+        for (Map.Entry<String, Long> entry : partialVersion.entrySet()) {
+            String partPath = CacheBlock.genSuffixPath(entry.getKey(), entry.getValue())
+                    + PART_SUFFIX;
+            if (!activePartials.contains(partPath)) {
+                dropPartial(entry.getKey(), entry.getValue());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void setRemovalListener(RemovalListener removalListener) {
+        this.removalListener = removalListener;
+    }
+
+    private void countPrivate(String suffixPath, long size) {
+        privateBytes.put(suffixPath, size);
+        sharedIndex.addPrivate(size);
+    }
+
+    private void releasePrivate(String suffixPath) {
+        Long size = privateBytes.remove(suffixPath);
+        if (size != null) {
+            sharedIndex.addPrivate(-size);
+        }
+    }
+
+    private void countPrivate(CacheBlock cacheBlock, long size) {
+        long old = cacheBlock.setPrivateBytes(size);
+        sharedIndex.addPrivate(size - Math.max(0, old));
+    }
+
+    private void releasePrivate(CacheBlock cacheBlock) {
+        long old = cacheBlock.setPrivateBytes(-1);
+        if (old >= 0) {
+            sharedIndex.addPrivate(-old);
+        }
+    }
+
+    /**
+     * Account for the dead space of the segments, which takes disk like the
+     * versions still live in them.
+     */
+    private void countDeadSpace() {
+        synchronized (segmentStore) {
+            long dead = segmentStore.getDeadBytes();
+            Long counted = privateBytes.put(SegmentStore.SEGMENT_DIR, dead);
+            sharedIndex.addPrivate(dead - (counted == null ? 0 : counted));
+        }
+    }
+
+    /**
+     * Compact all segments with dead space.
+     *
+     * @return true if any space was reclaimed
+     */
+    private boolean reclaimSegments() {
+        long reclaimed = segmentStore.compactAll();
+        countDeadSpace();
+        return reclaimed > 0;
+    }
+
+    /**
+     * Give up a read copy this proxy no longer uses.
+     *
+     * @return true if the file may be deleted, false if another proxy still
+     * has it open
+     */
+    private boolean unshare(CacheBlock cacheBlock) {
+        if (cacheBlock.isPrivate()) {
+            releasePrivate(cacheBlock);
+            return true;
+        }
+        return sharedIndex.remove(cacheBlock.getOrigPath(), cacheBlock.getVersion(), false);
+    }
+
     /**
      * Set previous version invalid, if it is in the cache and is stale.
      *
@@ -87,47 +568,115 @@ public class LRUCache {
      */
     public void setInvalid(String origPath, long version) {
         // Set previous version invalid
-        if (pathVersion.containsKey(origPath)
-                && pathVersion.get(origPath) < version) {
-            String stalePath =
-                    CacheBlock.genSuffixPath(origPath, pathVersion.get(origPath));
-            cacheBlockMap.get(stalePath).setValid(false);
-            garbageCollectStaleVersion(stalePath);
+        CacheBlock staleBlock = versionIndex.getBlock(origPath);
+        if (staleBlock != null && staleBlock.getVersion() < version) {
+            staleBlock.setValid(false);
+            garbageCollectStaleVersion(staleBlock);
         }
     }
 
     /**
-     * Control the size of the LRU cache, if over capacity, delete least
-     * recently used blocks that are not open, until current file size sum
-     * is below capacity.
+     * Control the size of the cache root, if over capacity, delete least
+     * recently used read copies that no proxy has open, until the bytes used
+     * by all proxies sharing the root are below capacity. Copies private to
+     * this proxy are evicted once no shared one can be. Dead segment space
+     * counts as used; once it passes {@link #SEGMENT_DEAD_RATIO} of the
+     * capacity, or nothing else can go, the segments are compacted.
      */
     private void sizeControl() {
-        while (currSize > cacheCapacity) {
+        countDeadSpace();
+        while (sharedIndex.getUsage() > cacheCapacity) {
+            if (segmentStore.getDeadBytes() > cacheCapacity * SEGMENT_DEAD_RATIO
+                    && reclaimSegments()) {
+                continue;
+            }
+            String victim = sharedIndex.evict();
+            if (victim != null) {
+                System.err.println(" Delete: " + victim);
+                new File(cacheRoot + victim).delete();
+                removalListener.removed(cacheRoot + victim);
+                CacheBlock oldBlock = versionIndex.getBlockBySuffixPath(victim);
+                if (oldBlock != null) {
+                    String origPath = oldBlock.getOrigPath();
+                    removeBlock(oldBlock);
+                    versionIndex.remove(oldBlock);
+                    versionIndex.remove(origPath, oldBlock.getVersion());
+                    advertise(origPath);
+                }
+                continue;
+            }
             CacheBlock oldBlock = removeTail();
+            if (oldBlock == null && evictPartial()) {
+                continue;
+            }
+            if (oldBlock == null && reclaimSegments()) {
+                continue;
+            }
             if (oldBlock == null) {
                 System.err.println(" Can evict nothing. ");
                 break;
             }
-            System.err.println(" Delete: " + oldBlock.getOrigPath());
-            cacheBlockMap.remove(oldBlock.getSuffixPath());
-            pathVersion.remove(oldBlock.getOrigPath());
-            currSize -= oldBlock.getFileSize();
-            boolean tmp = (oldBlock.deleteFile());
+            String origPath = oldBlock.getOrigPath();
+            System.err.println(" Delete: " + origPath);
+            releasePrivate(oldBlock);
+            removalListener.removed(cacheRoot + oldBlock.getSuffixPath());
+            boolean tmp = deleteCopy(oldBlock);
             assert (tmp);
+            // The path id may be freed from here on
+            versionIndex.remove(oldBlock);
+            versionIndex.remove(origPath, oldBlock.getVersion());
+            advertise(origPath);
         }
-        System.err.println("[ Size control done, cache usage: " + currSize + "/" + cacheCapacity + " ]");
+        System.err.println("[ Size control done, cache usage: "
+                + sharedIndex.getUsage()
+                + "/"
+                + cacheCapacity
+                + ", "
+                + segmentStore
+                + " ]");
     }
 
     public CacheBlock get(String path) {
-//        String suffixPath = CacheBlock.genSuffixPath(path, pathVersion.get(path));
-        if (!cacheBlockMap.containsKey(path)) {
+        CacheBlock cacheBlock = block(path);
+        if (cacheBlock == null) {
             return null;
         }
-        CacheBlock cacheBlock = cacheBlockMap.get(path);
         moveToHead(cacheBlock);
         return cacheBlock;
     }
 
+    /**
+     * Find the block of a read or write copy by its relative suffix path,
+     * without splitting it.
+     */
+    private CacheBlock block(String suffixPath) {
+        CacheBlock writeCopy = writeCopies.get(suffixPath);
+        return writeCopy != null ? writeCopy : versionIndex.getBlockBySuffixPath(suffixPath);
+    }
+
+    /**
+     * Get a version of a file, moving it to the front of the LRU order.
+     *
+     * @param origPath relative original path on server
+     * @param version  version wanted
+     * @return block of the version, or null if it is not cached
+     */
+    public CacheBlock get(String origPath, long version) {
+        CacheBlock cacheBlock = lookup(origPath, version);
+        if (cacheBlock != null) {
+            moveToHead(cacheBlock);
+        }
+        return cacheBlock;
+    }
+
+    /**
+     * Find a version of a file, current or not, by its interned path id and
+     * version, without building its suffix path.
+     */
+    private CacheBlock lookup(String origPath, long version) {
+        return versionIndex.getBlock(origPath, version);
+    }
+
     /**
      * Delete file if exist in local cache.
      *
@@ -135,7 +684,7 @@ public class LRUCache {
      * @throws IOException when <code>deleteIfExists</code> fails
      */
     public void unlinkBlock(String path) throws IOException {
-        if (!pathVersion.containsKey(path)) {
+        if (!versionIndex.contains(path)) {
             return;
         }
         setInvalid(path, Integer.MAX_VALUE);
@@ -148,35 +697,60 @@ public class LRUCache {
      * @return version number or -1 if not found in cache
      */
     public long getFileVersion(String path) {
-        if (!pathVersion.containsKey(path)) return -1L;
-        return pathVersion.get(path);
+        return versionIndex.getVersion(path);
     }
 
     /**
      * Set version of file, without updating cache sequence.
      * Rename the filename suffix, to match current version number.
-     * Remap the new suffix path -> cache block entry in hashmap.
-     * Remap the original path -> version entry in hashmap.
+     * Index the read copy block under the new version, and make that
+     * version current for the path.
      *
-     * @param path relative suffix path (path + _ + version)
+     * @param path relative original path on server
      */
     public void setFileVersion(String path, long newVersion) throws IOException {
-        String oldSuffixPath =
-                CacheBlock.genSuffixPath(path, pathVersion.get(path));
-        pathVersion.put(path, newVersion);
-        if (cacheBlockMap.containsKey(oldSuffixPath)) {
-            CacheBlock cacheBlock = cacheBlockMap.get(oldSuffixPath);
-            cacheBlock.setVersion(newVersion);
-            String newSuffixPath =
-                    CacheBlock.genSuffixPath(cacheBlock.getOrigPath(), newVersion);
-            System.err.println("[ new suffix path: " + newSuffixPath + " ]");
-            File newSuffixFile = new File(cacheRoot + newSuffixPath);
+        long oldVersion = versionIndex.getVersion(path);
+        if (oldVersion < 0) {
+            return;
+        }
+        CacheBlock cacheBlock = versionIndex.getBlock(path, oldVersion);
+        if (cacheBlock == null) {
+            // No read copy to rewrite, the next open downloads the version
+            versionIndex.remove(path, oldVersion);
+            advertise(path);
+            return;
+        }
+        versionIndex.setVersion(cacheBlock.getPathId(), newVersion);
+        advertise(path);
+        unpack(cacheBlock);
+        /*
+         * The copy is about to be rewritten, take it out of the shared
+         * index. If another proxy is reading the old version, leave the
+         * old file to it and work on a private copy.
+         */
+        boolean readByOthers = false;
+        if (cacheBlock.isPrivate()) {
+            releasePrivate(cacheBlock);
+        } else if (sharedIndex.getRefCnt(path, oldVersion) > cacheBlock.getRefCnt()) {
+            sharedIndex.ref(path, oldVersion, -cacheBlock.getRefCnt());
+            readByOthers = true;
+        } else {
+            sharedIndex.remove(path, oldVersion, true);
+        }
+        removalListener.removed(cacheRoot + cacheBlock.getSuffixPath());
+        String newSuffixPath = CacheBlock.genSuffixPath(path, newVersion);
+        System.err.println("[ new suffix path: " + newSuffixPath + " ]");
+        File newSuffixFile = new File(cacheRoot + newSuffixPath);
+        if (readByOthers) {
+            cacheBlock.copyFile(newSuffixFile);
+        } else {
             cacheBlock.renameFile(newSuffixFile);
-            cacheBlockMap.put(newSuffixPath, cacheBlockMap.remove(oldSuffixPath));
-            System.err.println("[ Set new version file: "
-                    + cacheBlock.getFile().getAbsolutePath()
-                    + " ]");
         }
+        versionIndex.move(cacheBlock, newVersion);
+        countPrivate(cacheBlock, cacheBlock.getFileSize());
+        System.err.println("[ Set new version file: "
+                + cacheBlock.getFile().getAbsolutePath()
+                + " ]");
     }
 
     /**
@@ -185,8 +759,18 @@ public class LRUCache {
      * @param suffixPath relative path
      */
     public void P(String suffixPath) {
-        if (cacheBlockMap.containsKey(suffixPath)) {
-            cacheBlockMap.get(suffixPath).P();
+        P(block(suffixPath));
+    }
+
+    /**
+     * ++ ref count of a block, without updating cache sequence.
+     *
+     * @param cacheBlock block of the copy, or null for none
+     */
+    public void P(CacheBlock cacheBlock) {
+        if (cacheBlock != null) {
+            cacheBlock.P();
+            refShared(cacheBlock, 1);
         }
     }
 
@@ -196,8 +780,19 @@ public class LRUCache {
      * @param suffixPath relative path
      */
     public void V(String suffixPath) {
-        if (cacheBlockMap.containsKey(suffixPath)) {
-            cacheBlockMap.get(suffixPath).V();
+        V(block(suffixPath));
+    }
+
+    private void V(CacheBlock cacheBlock) {
+        if (cacheBlock != null) {
+            cacheBlock.V();
+            refShared(cacheBlock, -1);
+        }
+    }
+
+    private void refShared(CacheBlock cacheBlock, int delta) {
+        if (cacheBlock.getVersion() >= 0 && !cacheBlock.isPrivate()) {
+            sharedIndex.ref(cacheBlock.getOrigPath(), cacheBlock.getVersion(), delta);
         }
     }
 
@@ -207,17 +802,13 @@ public class LRUCache {
      * @param path relative path
      */
     public boolean getOpenStatus(String path) {
-        if (cacheBlockMap.containsKey(path)) {
-            return cacheBlockMap.get(path).isOpen();
-        }
-        return false;
+        CacheBlock cacheBlock = block(path);
+        return cacheBlock != null && cacheBlock.isOpen();
     }
 
     public boolean isValid(String path) {
-        if (!cacheBlockMap.containsKey(path)) {
-            return true;
-        }
-        return cacheBlockMap.get(path).isValid();
+        CacheBlock cacheBlock = block(path);
+        return cacheBlock == null || cacheBlock.isValid();
     }
 
     /**
@@ -228,10 +819,8 @@ public class LRUCache {
      * @return true if is dirty, false otherwise
      */
     public boolean isFileDirty(String path) {
-        if (!cacheBlockMap.containsKey(path)) {
-            return false;
-        }
-        return cacheBlockMap.get(path).isDirty();
+        CacheBlock cacheBlock = block(path);
+        return cacheBlock != null && cacheBlock.isDirty();
     }
 
     /**
@@ -241,7 +830,7 @@ public class LRUCache {
      * @param path relative path
      */
     public void setDirtyStatus(String path, boolean isDirty) {
-        cacheBlockMap.get(path).setDirty(isDirty);
+        block(path).setDirty(isDirty);
     }
 
     /**
@@ -252,13 +841,7 @@ public class LRUCache {
      * @return relative path of an original copy
      */
     public String getOrigPath(String path) {
-        return cacheBlockMap.get(path).getOrigPath();
-    }
-
-    public String getSuffixPath(String origPath) {
-        return cacheBlockMap.get(
-                CacheBlock.genSuffixPath(origPath,
-                        pathVersion.get(origPath))).getSuffixPath();
+        return block(path).getOrigPath();
     }
 
     /**
@@ -269,31 +852,67 @@ public class LRUCache {
      * @param path relative write copy path
      */
     public void garbageCollectWriteCopy(String path) {
-        if (cacheBlockMap.containsKey(path)) {
-            CacheBlock obsoleteWrite = cacheBlockMap.get(path);
-            if (obsoleteWrite.prev == null && obsoleteWrite.next == null) {
-                String writtenFilePath =
-                        CacheBlock.genSuffixPath(getOrigPath(path),
-                                pathVersion.get(getOrigPath(path)));
-                System.err.println("[ written file path: " + writtenFilePath + " ]");
-                CacheBlock writtenFileBlock = cacheBlockMap.get(writtenFilePath);
-                File origFile = writtenFileBlock.getFile();
-                currSize -= origFile.length();
-                moveToHead(writtenFileBlock);
-                V(writtenFilePath);
-                File writeCopyFile = cacheBlockMap.get(path).getFile();
-                try {
-                    Files.copy(writeCopyFile.toPath(),
-                            origFile.toPath(),
-                            REPLACE_EXISTING);
-                } catch (IOException e) {
-                    e.printStackTrace(System.err);
-                }
-//                currSize -= writeCopyFile.length();
-                cacheBlockMap.remove(path);
-                System.err.println("[ Delete write copy: " + writeCopyFile.getAbsolutePath() + " ]");
-                writeCopyFile.delete();
+        CacheBlock obsoleteWrite = writeCopies.get(path);
+        if (obsoleteWrite != null && obsoleteWrite.prev == null && obsoleteWrite.next == null) {
+            String origPath = obsoleteWrite.getOrigPath();
+            CacheBlock writtenFileBlock = versionIndex.getBlock(origPath);
+            System.err.println("[ written file path: " + writtenFileBlock.getSuffixPath() + " ]");
+            File origFile = writtenFileBlock.getFile();
+            releasePrivate(writtenFileBlock);
+            moveToHead(writtenFileBlock);
+            V(writtenFileBlock);
+            File writeCopyFile = obsoleteWrite.getFile();
+            try {
+                Files.copy(writeCopyFile.toPath(),
+                        origFile.toPath(),
+                        REPLACE_EXISTING);
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
             }
+            share(writtenFileBlock);
+            releasePrivate(path);
+            writeCopies.remove(path);
+            versionIndex.release(obsoleteWrite.getPathId());
+            pendingWrites.computeIfPresent(origPath,
+                    (p, cnt) -> cnt > 1 ? cnt - 1 : null);
+            advertise(origPath);
+            System.err.println("[ Delete write copy: " + writeCopyFile.getAbsolutePath() + " ]");
+            writeCopyFile.delete();
+        }
+    }
+
+    /**
+     * Check if a path is a write copy.
+     *
+     * @param path relative path of a write/read copy
+     * @return true if it is a write copy
+     */
+    public boolean isWriteCopy(String path) {
+        return writeCopies.containsKey(path);
+    }
+
+    /**
+     * Delete a write copy that is not uploaded, because nothing was written to
+     * it or its writes failed, and release the read copy it was made from.
+     *
+     * @param path relative write copy path
+     */
+    public synchronized void discardWriteCopy(String path) {
+        CacheBlock writeCopy = writeCopies.remove(path);
+        if (writeCopy == null) {
+            return;
+        }
+        String origPath = writeCopy.getOrigPath();
+        pendingWrites.computeIfPresent(origPath, (p, cnt) -> cnt > 1 ? cnt - 1 : null);
+        advertise(origPath);
+        releasePrivate(path);
+        writeCopy.deleteFile();
+        versionIndex.release(writeCopy.getPathId());
+        CacheBlock readCopy = versionIndex.getBlock(origPath);
+        if (readCopy != null) {
+            moveToHead(readCopy);
+            V(readCopy);
+            garbageCollectStaleVersion(readCopy);
         }
     }
 
@@ -304,21 +923,140 @@ public class LRUCache {
      * @param path file path on cache (with suffix write or version)
      */
     public void garbageCollectStaleVersion(String path) {
-        if (cacheBlockMap.containsKey(path)
-                && !getOpenStatus(path)
-                && !isValid(path)) {
-            CacheBlock staleBlock = cacheBlockMap.remove(path);
+        if (!writeCopies.containsKey(path)) {
+            garbageCollectStaleVersion(versionIndex.getBlockBySuffixPath(path));
+        }
+    }
+
+    private void garbageCollectStaleVersion(CacheBlock staleBlock) {
+        if (staleBlock != null
+                && versionIndex.contains(staleBlock)
+                && !staleBlock.isOpen()
+                && !staleBlock.isValid()) {
             removeBlock(staleBlock);
-            currSize -= staleBlock.getFileSize();
-            System.err.println("[ Delete stale copy: "
-                    + staleBlock.getFile().getAbsolutePath()
-                    + " ]");
-            staleBlock.getFile().delete();
+            // Another proxy may still read it, eviction removes it later
+            if (unshare(staleBlock)) {
+                removalListener.removed(cacheRoot + staleBlock.getSuffixPath());
+                System.err.println("[ Delete stale copy: "
+                        + staleBlock.getFile().getAbsolutePath()
+                        + " ]");
+                deleteCopy(staleBlock);
+            }
+            // The path id may be freed from here on
+            versionIndex.remove(staleBlock);
+        }
+    }
+
+    /**
+     * Pin a read copy for a peer proxy, so it is not evicted or deleted
+     * while being read. Copies of a file with a write copy pending are not
+     * handed out, since write back rewrites them in place.
+     *
+     * @param origPath relative original path on server
+     * @param version  version wanted by the peer
+     * @return the pinned block, to be released with {@link #unpin}, or null
+     * if the version is not cached
+     */
+    public synchronized CacheBlock pin(String origPath, long version) {
+        if (pendingWrites.containsKey(origPath)) {
+            return null;
         }
+        CacheBlock cacheBlock = lookup(origPath, version);
+        if (cacheBlock == null) {
+            return null;
+        }
+        P(cacheBlock);
+        return cacheBlock;
     }
 
-    public boolean contains(String path) {
-        return pathVersion.containsKey(path);
+    /**
+     * Release a block pinned for a peer, collecting it if it became stale.
+     *
+     * @param cacheBlock block returned by {@link #pin}
+     */
+    public synchronized void unpin(CacheBlock cacheBlock) {
+        V(cacheBlock);
+        garbageCollectStaleVersion(cacheBlock);
+    }
+
+    /**
+     * Get the changes to the versions that can be served to peer proxies.
+     *
+     * @param afterSeq sequence number of the last change seen, taken from
+     *                 the first page of {@link #getCachedVersions}
+     * @return up to {@link VersionLog#MAX_EVENTS_PER_CALL} changes in order,
+     * a version of -1 meaning the file is no longer served, or null if the
+     * caller has to start over from the versions served now
+     */
+    public List<VersionEvent> getCachedVersionChanges(long afterSeq) {
+        return peerLog.since(afterSeq);
+    }
+
+    /**
+     * Get a page of the versions that can be served to peer proxies, in
+     * path order. Changes made while the pages are fetched are caught up on
+     * from the sequence number of the first page.
+     *
+     * @param afterPath last path of the previous page, or null for the first
+     * @return up to {@link VersionLog#MAX_EVENTS_PER_CALL} versions, each
+     * carrying the sequence number of the last change logged when the page
+     * was taken; a page that is not full is the last
+     */
+    public List<VersionEvent> getCachedVersions(String afterPath) {
+        synchronized (peerLog) {
+            long seq = peerLog.getLastSeq();
+            TreeMap<String, Long> versions = new TreeMap<>(versionIndex.toMap());
+            versions.keySet().removeAll(pendingWrites.keySet());
+            Map<String, Long> page = afterPath == null ? versions : versions.tailMap(afterPath, false);
+            List<VersionEvent> events = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : page.entrySet()) {
+                if (events.size() == VersionLog.MAX_EVENTS_PER_CALL) {
+                    break;
+                }
+                events.add(new VersionEvent(seq, entry.getKey(), entry.getValue(), 0, true));
+            }
+            return events;
+        }
+    }
+
+    /**
+     * Log the version of a file served to peers, after it changed. The state
+     * is read under the log lock, so the last change logged for a path is
+     * never older than the one before it.
+     */
+    private void advertise(String path) {
+        synchronized (peerLog) {
+            long version = pendingWrites.containsKey(path) ? -1 : versionIndex.getVersion(path);
+            peerLog.append(path, version, 0, version >= 0);
+        }
+    }
+
+    /**
+     * Check if any version of a file is cached. A shared read copy another
+     * proxy evicted is dropped here.
+     *
+     * @param path relative original path on server
+     * @return true if a version is cached
+     */
+    public synchronized boolean contains(String path) {
+        long version = versionIndex.getVersion(path);
+        if (version < 0) {
+            return false;
+        }
+        CacheBlock cacheBlock = versionIndex.getBlock(path, version);
+        if ((cacheBlock != null && cacheBlock.isPrivate()) || sharedIndex.touch(path, version)) {
+            return true;
+        }
+        String suffixPath = CacheBlock.genSuffixPath(path, version);
+        System.err.println("[ Evicted by another proxy: " + suffixPath + " ]");
+        removalListener.removed(cacheRoot + suffixPath);
+        if (cacheBlock != null) {
+            removeBlock(cacheBlock);
+            versionIndex.remove(cacheBlock);
+        }
+        versionIndex.remove(path);
+        advertise(path);
+        return false;
     }
 
     private void addBlock(CacheBlock cacheBlock) {
@@ -344,29 +1082,38 @@ public class LRUCache {
     }
 
     /**
-     * Remove the least recently used block that is not currently open.
+     * Remove the least recently used private block that is not currently
+     * open. Shared blocks are evicted through the shared index.
      *
      * @return the removed block, or null if all cache are open.
      */
     private synchronized CacheBlock removeTail() {
         CacheBlock cacheBlock = tail.prev;
-        while (cacheBlock != null && cacheBlock.isOpen()) {
+        while (cacheBlock != head
+                && (cacheBlock.isOpen() || !cacheBlock.isPrivate())) {
             cacheBlock = cacheBlock.prev;
         }
-        removeBlock(cacheBlock);
-        if (cacheBlock == null || cacheBlock == head) {
+        if (cacheBlock == head) {
             System.err.println("[ Nothing evictable, all files open. ]");
             return null;
         }
+        removeBlock(cacheBlock);
         System.err.println("[ Evicted: " + cacheBlock.getSuffixPath() + " ]");
         return cacheBlock;
     }
 
+    /**
+     * @return bytes the cache root may hold
+     */
+    public int getCapacity() {
+        return cacheCapacity;
+    }
+
     public String getCacheRoot() {
         return cacheRoot;
     }
 
-    public void printCache() {
+    public synchronized void printCache() {
         CacheBlock cacheBlock = head.next;
         while (cacheBlock != tail) {
             System.err.print(cacheBlock.getSuffixPath() + "->");
@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read copy mapped into memory, shared by all read-only sessions on the
+ * same version. Files over {@link #SEGMENT_SIZE} are mapped in several
+ * segments. Read copies never change once cached, so a read is a plain
+ * memory copy, without a system call.
+ */
+public class MappedFile implements ReadSource {
+    /**
+     * Bytes per mapped segment, below the 2 GB limit of a single mapping
+     */
+    static final int SEGMENT_SIZE = 1 << 30;
+    private final MappedByteBuffer[] segments;
+    private final long length;
+
+    /**
+     * Map a file read-only.
+     *
+     * @param path file to map
+     * @throws IOException if the file cannot be mapped
+     */
+    public MappedFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            length = channel.size();
+            int count = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long offset = (long) i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        offset,
+                        Math.min(SEGMENT_SIZE, length - offset));
+            }
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public int read(long pos, byte[] buf) {
+        if (pos >= length) {
+            return -1;
+        }
+        int total = (int) Math.min(buf.length, length - pos);
+        int copied = 0;
+        while (copied < total) {
+            long curr = pos + copied;
+            MappedByteBuffer segment = segments[(int) (curr / SEGMENT_SIZE)];
+            int index = (int) (curr % SEGMENT_SIZE);
+            int n = Math.min(total - copied, segment.capacity() - index);
+            segment.get(index, buf, copied, n);
+            copied += n;
+        }
+        return copied;
+    }
+
+    /**
+     * Mappings cannot be unmapped explicitly, the garbage collector unmaps
+     * them once unreachable.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,209 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded in-memory tier above the on-disk cache, for small read copies
+ * that are opened often. Contents are kept off-heap in direct buffers.
+ *
+ * <p>A read copy is promoted on its {@link #promoteAfter}th read-only open
+ * and then served without touching the disk. Copies are demoted least
+ * recently used first when the tier is full, skipping those with open
+ * sessions, and dropped when the disk cache deletes or renames the read
+ * copy. Read copies packed in a segment are promoted the same way, loaded
+ * from the segment instead of a file.
+ */
+public class MemoryTier {
+    private final long capacity;
+    private final long maxFileSize;
+    private final int promoteAfter;
+    private long currSize = 0;
+    /**
+     * Maps absolute path of a read copy to its contents, in LRU order
+     */
+    private final LinkedHashMap<String, MemoryFile> fileMap;
+    /**
+     * Maps absolute path of a small read copy not in the tier to its opens
+     */
+    private final Map<String, Integer> openCount;
+
+    /**
+     * Reads the contents of a read copy being promoted.
+     */
+    public interface Loader {
+        /**
+         * @return contents, or null if the read copy is gone
+         * @throws IOException if the read copy cannot be read
+         */
+        ByteBuffer load() throws IOException;
+    }
+
+    public MemoryTier(long capacity, long maxFileSize, int promoteAfter) {
+        this.capacity = capacity;
+        this.maxFileSize = maxFileSize;
+        this.promoteAfter = promoteAfter;
+        this.fileMap = new LinkedHashMap<>(16, 0.75f, true);
+        this.openCount = new HashMap<>();
+    }
+
+    /**
+     * Get the in-memory contents of a read copy for a read-only session,
+     * promoting the copy if it became hot.
+     *
+     * @param absPath absolute path of the read copy
+     * @param fileKey identity of the file on disk
+     * @param size    size of the file on disk
+     * @return contents pinned for the session, or null if the copy is not
+     * in the tier
+     * @throws IOException if a promoted copy cannot be read
+     */
+    public MemoryFile acquire(String absPath, Object fileKey, long size) throws IOException {
+        return acquire(absPath, fileKey, size, () -> load(Path.of(absPath)));
+    }
+
+    /**
+     * Get the in-memory contents of a read copy for a read-only session,
+     * promoting the copy with the given loader if it became hot.
+     *
+     * @param absPath absolute path of the read copy
+     * @param fileKey identity of the stored copy
+     * @param size    size of the stored copy
+     * @param loader  reads the copy when it is promoted
+     * @return contents pinned for the session, or null if the copy is not
+     * in the tier
+     * @throws IOException if a promoted copy cannot be read
+     */
+    public synchronized MemoryFile acquire(String absPath,
+                                           Object fileKey,
+                                           long size,
+                                           Loader loader) throws IOException {
+        MemoryFile memoryFile = fileMap.get(absPath);
+        if (memoryFile != null && !Objects.equals(memoryFile.fileKey, fileKey)) {
+            remove(absPath);
+            memoryFile = null;
+        }
+        if (memoryFile == null) {
+            if (size > maxFileSize || size > capacity) {
+                return null;
+            }
+            if (openCount.size() > capacity / 64) {
+                openCount.clear();
+            }
+            if (openCount.merge(absPath, 1, Integer::sum) < promoteAfter) {
+                return null;
+            }
+            openCount.remove(absPath);
+            ByteBuffer buf = loader.load();
+            if (buf == null) {
+                return null;
+            }
+            memoryFile = new MemoryFile(buf, fileKey);
+            fileMap.put(absPath, memoryFile);
+            currSize += memoryFile.length();
+            demote();
+            System.err.println("[ Promoted to memory: " + absPath + " ]");
+        }
+        memoryFile.refCnt++;
+        return memoryFile;
+    }
+
+    /**
+     * Unpin contents when a session closes.
+     *
+     * @param memoryFile contents returned by acquire
+     */
+    public synchronized void release(MemoryFile memoryFile) {
+        memoryFile.refCnt--;
+        demote();
+    }
+
+    /**
+     * Drop a read copy the disk cache deleted or renamed. Open sessions keep
+     * reading their contents.
+     *
+     * @param absPath absolute path of the read copy
+     */
+    public synchronized void invalidate(String absPath) {
+        openCount.remove(absPath);
+        remove(absPath);
+    }
+
+    private void remove(String absPath) {
+        MemoryFile memoryFile = fileMap.remove(absPath);
+        if (memoryFile != null) {
+            currSize -= memoryFile.length();
+        }
+    }
+
+    /**
+     * Demote least recently used copies without open sessions until under
+     * capacity. Their read copies stay in the disk cache.
+     */
+    private void demote() {
+        Iterator<Map.Entry<String, MemoryFile>> it = fileMap.entrySet().iterator();
+        while (currSize > capacity && it.hasNext()) {
+            Map.Entry<String, MemoryFile> entry = it.next();
+            if (entry.getValue().refCnt > 0) {
+                continue;
+            }
+            it.remove();
+            currSize -= entry.getValue().length();
+            System.err.println("[ Demoted from memory: " + entry.getKey() + " ]");
+        }
+    }
+
+    private static ByteBuffer load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect((int) channel.size());
+            while (buf.hasRemaining() && channel.read(buf) != -1) {
+                // Keep reading until the buffer is full or end of file
+            }
+            buf.flip();
+            return buf;
+        }
+    }
+
+    /**
+     * Contents of a read copy held in the tier.
+     */
+    public static class MemoryFile implements ReadSource {
+        private final ByteBuffer buf;
+        private final Object fileKey;
+        private int refCnt;
+
+        MemoryFile(ByteBuffer buf, Object fileKey) {
+            this.buf = buf;
+            this.fileKey = fileKey;
+        }
+
+        @Override
+        public long length() {
+            return buf.limit();
+        }
+
+        @Override
+        public int read(long pos, byte[] dst) {
+            if (pos >= buf.limit()) {
+                return -1;
+            }
+            int n = (int) Math.min(dst.length, buf.limit() - pos);
+            buf.get((int) pos, dst, 0, n);
+            return n;
+        }
+
+        /**
+         * The direct buffer is freed by the garbage collector once the tier
+         * and every session dropped it.
+         */
+        @Override
+        public void close() {
+        }
+    }
+}
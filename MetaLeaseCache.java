@@ -0,0 +1,217 @@
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Short-lived metadata cache on the proxy side. Server replies that a file
+ * is missing are remembered for a bounded TTL as negative leases, so
+ * repeated probes of missing files are answered without an RPC. Files that
+ * exist are never leased: opens check them with the server every time.
+ *
+ * <p>Leases are dropped on local mutations, on expiry, and whenever a server
+ * reply carries a newer epoch than the one last observed. The server bumps
+ * its epoch on every mutation, so staleness across proxies is bounded by the
+ * TTL at worst, and by the next metadata round trip at best. Each lease keeps
+ * the epoch its reply carried, so a reply stored after a newer epoch was
+ * observed is never served. A server restart starts its epoch over under a
+ * new incarnation, which drops all leases and replaces the epoch observed.
+ */
+public class MetaLeaseCache {
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final int dirPrefetchThreshold;
+    /**
+     * Maps relative original path to its lease
+     */
+    private final Map<String, Lease> leaseMap;
+    /**
+     * Maps relative directory path to the children asked for since its last
+     * prefetch
+     */
+    private final Map<String, DirMisses> dirMisses;
+    /**
+     * Maps server url to the latest epoch seen in its metadata replies, as
+     * meta data carrying the incarnation and epoch
+     */
+    private final Map<String, FileMeta> epochMap;
+
+    public MetaLeaseCache(long ttlMillis, int maxEntries, int dirPrefetchThreshold) {
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.maxEntries = maxEntries;
+        this.dirPrefetchThreshold = dirPrefetchThreshold;
+        this.leaseMap = new ConcurrentHashMap<>();
+        this.dirMisses = new ConcurrentHashMap<>();
+        this.epochMap = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Get the leased meta data of a path, dropping the lease if it has
+     * expired.
+     *
+     * @param path relative original path on server
+     * @return leased meta data, or null if no valid lease exists
+     */
+    private FileMeta getLease(String path) {
+        Lease lease = leaseMap.get(path);
+        if (lease == null) {
+            return null;
+        }
+        if (System.nanoTime() - lease.expiry > 0 || isOutdated(lease)) {
+            leaseMap.remove(path, lease);
+            return null;
+        }
+        return lease.fileMeta;
+    }
+
+    /**
+     * Check whether a path is known to be missing on the server.
+     *
+     * @param path relative original path on server
+     * @return true if a valid negative lease exists
+     */
+    public boolean isMissing(String path) {
+        FileMeta fileMeta = getLease(path);
+        return fileMeta != null && !fileMeta.exists();
+    }
+
+    /**
+     * Lease the meta data the server returned for a path.
+     *
+     * @param serverUrl url of the server that replied
+     * @param path      relative original path on server
+     * @param fileMeta  meta data returned by the server
+     */
+    private void putLease(String serverUrl, String path, FileMeta fileMeta) {
+        if (leaseMap.size() >= maxEntries) {
+            purgeExpired();
+            if (leaseMap.size() >= maxEntries) {
+                leaseMap.clear();
+            }
+        }
+        Lease lease = new Lease(serverUrl, fileMeta, System.nanoTime() + ttlNanos);
+        if (!isOutdated(lease)) {
+            leaseMap.put(path, lease);
+        }
+    }
+
+    /**
+     * Record that the server reported the path as nonexistent. A reply for
+     * a file the server failed to stat is not leased.
+     *
+     * @param serverUrl url of the server that replied
+     * @param path      relative original path on server
+     * @param fileMeta  meta data returned by the server
+     */
+    public void putMissing(String serverUrl, String path, FileMeta fileMeta) {
+        if (fileMeta.exists() || fileMeta.isBadFile()) {
+            return;
+        }
+        FileMeta missing = new FileMeta();
+        missing.setEpoch(fileMeta.getEpoch());
+        missing.setIncarnation(fileMeta.getIncarnation());
+        putLease(serverUrl, path, missing);
+    }
+
+    /**
+     * Drop any lease held on the path, called when the proxy itself creates,
+     * writes or unlinks the file.
+     *
+     * @param path relative original path on server
+     */
+    public void invalidate(String path) {
+        leaseMap.remove(path);
+    }
+
+    /**
+     * Count a per-file metadata round trip under a directory. Only distinct
+     * children count, so reopening one hot file never prefetches its
+     * directory, and a directory is prefetched at most once per TTL.
+     *
+     * @param dirPath relative directory path on server
+     * @param path    relative path of the child asked for
+     * @return true once enough distinct children of the directory were asked
+     * for that prefetching all of them is cheaper
+     */
+    public boolean countDirMiss(String dirPath, String path) {
+        if (dirMisses.size() >= maxEntries) {
+            dirMisses.clear();
+        }
+        DirMisses misses = dirMisses.computeIfAbsent(dirPath, d -> new DirMisses());
+        long now = System.nanoTime();
+        synchronized (misses) {
+            if (misses.lastPrefetch != 0 && now - misses.lastPrefetch < ttlNanos) {
+                return false;
+            }
+            misses.children.add(path);
+            if (misses.children.size() < dirPrefetchThreshold) {
+                return false;
+            }
+            misses.children.clear();
+            misses.lastPrefetch = now;
+            return true;
+        }
+    }
+
+    /**
+     * Feed the epoch carried by a server reply. A newer epoch, or another
+     * incarnation of the server, means the server namespace changed since
+     * the leases were recorded, so all of them are dropped.
+     *
+     * @param serverUrl url of the server that replied
+     * @param fileMeta  meta data returned by the server
+     */
+    public synchronized void observeEpoch(String serverUrl, FileMeta fileMeta) {
+        FileMeta observed = epochMap.get(serverUrl);
+        if (observed == null
+                || fileMeta.getIncarnation() != observed.getIncarnation()
+                || fileMeta.getEpoch() > observed.getEpoch()) {
+            if (observed != null) {
+                leaseMap.clear();
+            }
+            FileMeta latest = new FileMeta();
+            latest.setEpoch(fileMeta.getEpoch());
+            latest.setIncarnation(fileMeta.getIncarnation());
+            epochMap.put(serverUrl, latest);
+        }
+    }
+
+    /**
+     * @return true if the lease comes from another incarnation of the
+     * server, or the server has moved past the epoch of the lease
+     */
+    private boolean isOutdated(Lease lease) {
+        FileMeta observed = epochMap.get(lease.serverUrl);
+        return observed != null
+                && (lease.fileMeta.getIncarnation() != observed.getIncarnation()
+                || lease.fileMeta.getEpoch() < observed.getEpoch());
+    }
+
+    private void purgeExpired() {
+        long now = System.nanoTime();
+        leaseMap.entrySet().removeIf(e -> now - e.getValue().expiry > 0);
+    }
+
+    private static class DirMisses {
+        /**
+         * Distinct children asked for, at most the prefetch threshold
+         */
+        private final Set<String> children = new HashSet<>();
+        /**
+         * System.nanoTime() of the last prefetch, 0 if none
+         */
+        private long lastPrefetch = 0;
+    }
+
+    private static class Lease {
+        private final String serverUrl;
+        private final FileMeta fileMeta;
+        private final long expiry;
+
+        Lease(String serverUrl, FileMeta fileMeta, long expiry) {
+            this.serverUrl = serverUrl;
+            this.fileMeta = fileMeta;
+            this.expiry = expiry;
+        }
+    }
+}
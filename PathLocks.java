@@ -0,0 +1,36 @@
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Bounded table of reader-writer locks for paths. Each path maps to one of a
+ * fixed number of stripes by its hash, so memory stays the same however
+ * many paths the server sees, and paths on different stripes never
+ * contend. Readers of a path share its stripe; writers hold it exclusively.
+ *
+ * <p>The locks are not reentrant, and two paths may share a stripe, so a
+ * caller holding a stripe must not lock another path.
+ */
+public class PathLocks {
+    private final StampedLock[] stripes;
+    private final int mask;
+
+    /**
+     * @param stripes number of locks, rounded up to a power of two
+     */
+    public PathLocks(int stripes) {
+        int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = new StampedLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new StampedLock();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * @param absPath absolute path on server
+     * @return lock of the stripe the path maps to
+     */
+    public StampedLock get(String absPath) {
+        int h = absPath.hashCode();
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+}
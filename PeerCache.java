@@ -0,0 +1,13 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+public interface PeerCache extends Remote {
+
+    RawFile getChunk(String path, long version, int nbytes, long offset) throws RemoteException;
+
+    List<VersionEvent> getCachedVersionChanges(long afterSeq) throws RemoteException;
+
+    List<VersionEvent> getCachedVersions(String afterPath) throws RemoteException;
+
+}
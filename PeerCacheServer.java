@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Serves the read copies of a proxy's cache to its peer proxies.
+ */
+public class PeerCacheServer extends UnicastRemoteObject implements PeerCache {
+    private static final long serialVersionUID = 1L;
+
+    private final LRUCache lruCache;
+
+    /**
+     * Creates and exports a peer cache on a port.
+     *
+     * @param port     the port number on which the remote object receives calls
+     * @param lruCache cache whose read copies are served
+     * @throws RemoteException if failed to export object
+     */
+    public PeerCacheServer(int port, LRUCache lruCache) throws RemoteException {
+        super(port);
+        this.lruCache = lruCache;
+    }
+
+    /**
+     * Read a chunk of a cached version. The read copy is pinned for the
+     * duration of the read.
+     *
+     * @param path    relative original path on server
+     * @param version version wanted
+     * @param nbytes  length of the chunk
+     * @param offset  offset of the chunk
+     * @return chunk read, or null if the version is not cached here or is
+     * shorter than asked for
+     * @throws RemoteException if RMI call fails
+     */
+    @Override
+    public RawFile getChunk(String path,
+                            long version,
+                            int nbytes,
+                            long offset) throws RemoteException {
+        CacheBlock cacheBlock = lruCache.pin(path, version);
+        if (cacheBlock == null) {
+            return null;
+        }
+        try {
+            byte[] packed = lruCache.readPacked(cacheBlock);
+            if (packed != null) {
+                if (packed.length < offset + nbytes) {
+                    return null;
+                }
+                return new RawFile(Arrays.copyOfRange(packed, (int) offset, (int) offset + nbytes));
+            }
+            try (RandomAccessFile randomAccessFile =
+                         new RandomAccessFile(cacheBlock.getFile(), "r")) {
+                if (randomAccessFile.length() < offset + nbytes) {
+                    return null;
+                }
+                byte[] buf = new byte[nbytes];
+                randomAccessFile.seek(offset);
+                randomAccessFile.readFully(buf);
+                return new RawFile(buf);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            lruCache.unpin(cacheBlock);
+        }
+    }
+
+    /**
+     * Advertise the changes to the versions this proxy can serve.
+     *
+     * @param afterSeq sequence number of the last change seen
+     * @return a page of changes in order, or null if the peer has to start
+     * over from the versions served now
+     * @throws RemoteException if RMI call fails
+     */
+    @Override
+    public List<VersionEvent> getCachedVersionChanges(long afterSeq) throws RemoteException {
+        return lruCache.getCachedVersionChanges(afterSeq);
+    }
+
+    /**
+     * Advertise a page of the versions this proxy serves now.
+     *
+     * @param afterPath last path of the previous page, or null for the first
+     * @return versions in path order, a page that is not full being the last
+     * @throws RemoteException if RMI call fails
+     */
+    @Override
+    public List<VersionEvent> getCachedVersions(String afterPath) throws RemoteException {
+        return lruCache.getCachedVersions(afterPath);
+    }
+}
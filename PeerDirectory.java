@@ -0,0 +1,191 @@
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Which peer proxies cache which versions. Each peer's advertised
+ * (path, version) set is pulled in full once, in pages, then kept up to
+ * date with the changes since the last pull; on a cache miss, chunks of a version some
+ * peer holds are read from that peer instead of the server.
+ */
+public class PeerDirectory {
+    private final List<Peer> peers;
+    private final AtomicLong peerChunks;
+    private final AtomicLong peerMisses;
+
+    /**
+     * @param peerUrls  RMI urls of the peer proxies
+     * @param refreshMs how often peers are asked for their cached versions
+     */
+    public PeerDirectory(List<String> peerUrls, long refreshMs) {
+        List<Peer> peerList = new ArrayList<>();
+        for (String url : peerUrls) {
+            peerList.add(new Peer(url));
+        }
+        this.peers = Collections.unmodifiableList(peerList);
+        this.peerChunks = new AtomicLong();
+        this.peerMisses = new AtomicLong();
+        Thread refresher = new Thread(() -> {
+            String lastStats = getStats();
+            while (true) {
+                for (Peer peer : peers) {
+                    peer.refresh();
+                }
+                String stats = getStats();
+                if (!stats.equals(lastStats)) {
+                    System.err.println("[ Peer cache: " + stats + " ]");
+                    lastStats = stats;
+                }
+                try {
+                    Thread.sleep(refreshMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "peer-directory");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    /**
+     * Read a chunk of a version from a peer advertising it.
+     *
+     * @param path    relative original path on server
+     * @param version version wanted
+     * @param nbytes  length of the chunk
+     * @param offset  offset of the chunk
+     * @return chunk read, or null if no peer could serve it
+     */
+    public RawFile getChunk(String path, long version, int nbytes, long offset) {
+        List<Peer> holders = new ArrayList<>();
+        for (Peer peer : peers) {
+            if (peer.holds(path, version)) {
+                holders.add(peer);
+            }
+        }
+        if (holders.isEmpty()) {
+            return null;
+        }
+        Peer peer = holders.get(ThreadLocalRandom.current().nextInt(holders.size()));
+        try {
+            RawFile rawFile = peer.cache.getChunk(path, version, nbytes, offset);
+            if (rawFile != null) {
+                peerChunks.incrementAndGet();
+                return rawFile;
+            }
+        } catch (Exception e) {
+            System.err.println("[ Peer " + peer.url + " failed: " + e.getMessage() + " ]");
+        }
+        // Advertisement was out of date
+        peer.forget(path);
+        peerMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return number of chunks read from peers, and of advertised chunks the
+     * peers could not serve
+     */
+    private String getStats() {
+        return peerChunks.get() + " chunks from peers, " + peerMisses.get() + " misses";
+    }
+
+    private static class Peer {
+        private final String url;
+        private volatile PeerCache cache;
+        private final Map<String, Long> versions = new ConcurrentHashMap<>();
+        /**
+         * Sequence number of the last change applied, 0 for none
+         */
+        private long seq = 0;
+
+        Peer(String url) {
+            this.url = url;
+        }
+
+        void refresh() {
+            try {
+                if (cache == null) {
+                    cache = (PeerCache) Naming.lookup(url);
+                }
+                if (seq > 0 && !catchUp()) {
+                    // Fell behind the peer's log, or the peer restarted
+                    seq = 0;
+                }
+                if (seq == 0) {
+                    loadVersions();
+                    if (seq > 0 && !catchUp()) {
+                        seq = 0;
+                    }
+                }
+            } catch (Exception e) {
+                cache = null;
+                versions.clear();
+                seq = 0;
+            }
+        }
+
+        /**
+         * Apply the peer's changes since the last one applied, one page at a
+         * time.
+         *
+         * @return false if the peer's log no longer holds them
+         */
+        private boolean catchUp() throws RemoteException {
+            List<VersionEvent> events;
+            do {
+                events = cache.getCachedVersionChanges(seq);
+                if (events == null) {
+                    return false;
+                }
+                for (VersionEvent event : events) {
+                    if (event.exists()) {
+                        versions.put(event.getPath(), event.getVersion());
+                    } else {
+                        versions.remove(event.getPath());
+                    }
+                    seq = Math.max(seq, event.getSeq());
+                }
+            } while (events.size() == VersionLog.MAX_EVENTS_PER_CALL);
+            return true;
+        }
+
+        /**
+         * Replace the versions with the ones the peer serves now, one page
+         * at a time. Changes made meanwhile are caught up on from the
+         * sequence number of the first page.
+         */
+        private void loadVersions() throws RemoteException {
+            versions.clear();
+            long first = 0;
+            String last = null;
+            List<VersionEvent> page;
+            do {
+                page = cache.getCachedVersions(last);
+                for (VersionEvent event : page) {
+                    versions.put(event.getPath(), event.getVersion());
+                    last = event.getPath();
+                    if (first == 0) {
+                        first = event.getSeq();
+                    }
+                }
+            } while (page.size() == VersionLog.MAX_EVENTS_PER_CALL);
+            seq = first;
+        }
+
+        boolean holds(String path, long version) {
+            Long cached = versions.get(path);
+            return cached != null && cached == version;
+        }
+
+        void forget(String path) {
+            versions.remove(path);
+        }
+    }
+}
@@ -1,23 +1,184 @@
 /* Sample skeleton for proxy */
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Proxy {
 
     private static final int ARG_LEN = 4;
+    /**
+     * RMI client read timeout in ms, unset means wait forever
+     */
+    private static final String RMI_RESPONSE_TIMEOUT =
+            "sun.rmi.transport.tcp.responseTimeout";
+    /**
+     * How long a metadata answer from the server is trusted without asking
+     * again
+     */
+    private static final long META_LEASE_TTL_MS = 2000;
+    private static final int META_LEASE_MAX_ENTRIES = 100000;
+    /**
+     * Distinct children asked for under one directory before all of its
+     * children are prefetched in one call, at most once per lease TTL
+     */
+    private static final int DIR_PREFETCH_THRESHOLD = 4;
+    /**
+     * Children of a prefetched directory downloaded ahead at most
+     */
+    private static final int DIR_PREFETCH_FILES = 16;
+    /**
+     * Downloads restarted because a newer version was published meanwhile,
+     * or resumed after a failed call, before giving up
+     */
+    private static final int MAX_FETCH_ATTEMPTS = 3;
+    /**
+     * Pause between checks of a download another proxy sharing the cache
+     * root is making
+     */
+    private static final long DOWNLOAD_POLL_MS = 50;
+    /**
+     * Virtual nodes per server on the consistent hashing ring
+     */
+    private static final int VNODES = 128;
+    /**
+     * How often an endpoints file is re-read for added servers
+     */
+    private static final long ENDPOINT_REFRESH_MS = 10000;
+    /**
+     * How often peer proxies are asked which versions they cache
+     */
+    private static final long PEER_REFRESH_MS = 2000;
+    /**
+     * Bytes of hot small read copies kept in memory, apart from the disk
+     * cache size
+     */
+    private static final long MEMORY_TIER_CAPACITY = 64L * 1024 * 1024;
+    /**
+     * Largest read copy kept in memory
+     */
+    private static final long MEMORY_TIER_MAX_FILE = 256 * 1024;
+    /**
+     * Read-only opens after which a read copy is kept in memory
+     */
+    private static final int MEMORY_TIER_PROMOTE_AFTER = 2;
+    /**
+     * Bytes of a streamed file kept in memory per session, at least one
+     * chunk more than the read ahead
+     */
+    private static final int STREAM_WINDOW_BYTES = 8 * 1024 * 1024;
+    /**
+     * Threads making asynchronous calls to all servers
+     */
+    private static final int CALL_THREADS = 32;
+    /**
+     * Asynchronous calls in flight per server, more wait in a queue
+     */
+    private static final int MAX_CALLS_PER_SERVER = 16;
+    /**
+     * Largest file whose download is scheduled as a small fetch, ahead of
+     * bulk transfers
+     */
+    private static final long SMALL_FETCH_MAX = 1024 * 1024;
+    /**
+     * TCP streams per server for chunk reads, unless streams15440 is set
+     */
+    private static final int DEFAULT_BULK_STREAMS = 4;
+    /**
+     * How often the hottest cached files are revalidated
+     */
+    private static final long REFRESH_INTERVAL_MS = 1000;
+    /**
+     * Hottest cached files revalidated per round
+     */
+    private static final int REFRESH_HOT_ENTRIES = 64;
+    /**
+     * Average bytes per second refreshing may fetch
+     */
+    private static final long REFRESH_BYTES_PER_SEC = 8L * 1024 * 1024;
+    /**
+     * Files downloaded at once when warming the cache from a manifest
+     */
+    private static final int WARMUP_WORKERS = 4;
     private static final Object versionLock = new Object();
-    private static int fd = 9;
-    private static RemoteFileHandler server;
+    /**
+     * Lowest file descriptor handed to a client
+     */
+    private static final int FIRST_FD = 9;
+    /**
+     * Keeps write copy names unique among all clients of this proxy
+     */
+    private static final AtomicInteger writeCopySeq = new AtomicInteger();
+    private static ServerRouter router;
     private static LRUCache lruCache;
+    private static MetaLeaseCache metaLeaseCache;
+    /**
+     * Read copies shared by read-only sessions
+     */
+    private static final MemoryTier memoryTier = new MemoryTier(MEMORY_TIER_CAPACITY,
+            MEMORY_TIER_MAX_FILE,
+            MEMORY_TIER_PROMOTE_AFTER);
+    private static final ReadSourceTable readSources = new ReadSourceTable(memoryTier);
+    /**
+     * Peer proxies to read cached versions from, null if none configured
+     */
+    private static PeerDirectory peerDirectory;
+    /**
+     * Fetches newer versions of hot files before clients open them
+     */
+    private static RefreshAhead refreshAhead;
+    /**
+     * Downloads children of prefetched directories
+     */
+    private static RefreshAhead.Fetcher dirFetcher;
+    /**
+     * Runs directory prefetch downloads one at a time; more than a
+     * directory's worth waiting are dropped
+     */
+    private static final ExecutorService dirFetchPool =
+            new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(DIR_PREFETCH_FILES),
+                    r -> {
+                        Thread t = new Thread(r, "dir-prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    },
+                    new ThreadPoolExecutor.DiscardPolicy());
+    /**
+     * Maps server url to the tuning of transfers with it
+     */
+    private static final Map<String, TransferTuner> tuners = new ConcurrentHashMap<>();
+    private static final ExecutorService callPool =
+            Executors.newFixedThreadPool(CALL_THREADS, r -> {
+                Thread t = new Thread(r, "server-call");
+                t.setDaemon(true);
+                return t;
+            });
 
     public static void main(String[] args) throws IOException {
         if (args.length < ARG_LEN) {
@@ -26,89 +187,518 @@ public class Proxy {
             return;
         }
 
-        String serverIP = args[0];
+        // One server, a comma separated list of host[:port], or @file. Each
+        // server may be followed by its replicas, as host[:port]+host[:port]
+        String servers = args[0];
         int port = Integer.parseInt(args[1]);
         String cacheRoot = args[2] + "/";
         int cacheSize = Integer.parseInt(args[3]);
         System.err.println("[ Cache size: " + cacheSize + " ]");
 
+        // A stuck call also gives back its slot in the async handlers
+        if (System.getProperty(RMI_RESPONSE_TIMEOUT) == null) {
+            System.setProperty(RMI_RESPONSE_TIMEOUT,
+                    Long.toString(AsyncFileHandler.CALL_TIMEOUT_MS));
+        }
+
         // Initialize cache
         lruCache = new LRUCache(cacheSize, cacheRoot);
+        lruCache.setRemovalListener(memoryTier::invalidate);
+        metaLeaseCache = new MetaLeaseCache(META_LEASE_TTL_MS,
+                META_LEASE_MAX_ENTRIES,
+                DIR_PREFETCH_THRESHOLD);
+
+        // Chunk reads are spread over streams15440 TCP streams, 0 for RMI only
+        String streams = System.getenv("streams15440");
+        router = new ServerRouter(VNODES,
+                FileHandler.MAX_CHUNK_SIZE,
+                MAX_CALLS_PER_SERVER,
+                callPool,
+                streams == null ? DEFAULT_BULK_STREAMS : Integer.parseInt(streams));
+        if (servers.startsWith("@")) {
+            String endpointFile = servers.substring(1);
+            addEndpoints(readEndpoints(endpointFile), port, true);
+            Thread refresher = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(ENDPOINT_REFRESH_MS);
+                        addEndpoints(readEndpoints(endpointFile), port, false);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, "endpoint-refresher");
+            refresher.setDaemon(true);
+            refresher.start();
+        } else {
+            addEndpoints(Arrays.asList(servers.split(",")), port, true);
+        }
+
+        startPeerCache();
 
-        String url = "//" + serverIP + ":" + port + "/server";
+        dirFetcher = new FileHandler(true)::fetchAhead;
+        FileHandler refreshHandler = new FileHandler(true);
+        refreshAhead = new RefreshAhead(lruCache,
+                router,
+                metaLeaseCache,
+                refreshHandler::fetchAhead,
+                REFRESH_INTERVAL_MS,
+                REFRESH_HOT_ENTRIES,
+                REFRESH_BYTES_PER_SEC);
+        // Export the hot set for other proxies to warm up from
+        String hotSet = System.getenv("hotset15440");
+        if (hotSet != null) {
+            refreshAhead.setHotSetFile(hotSet);
+        }
+        refreshAhead.start();
+
+        warmUp();
 
+        (new RPCreceiver(new FileHandlingFactory())).run();
+    }
+
+    /**
+     * Fill the cache from the manifest named by <code>preload15440</code>, if
+     * any. With <code>preloadwait15440=1</code>, clients are accepted only
+     * once it is done; otherwise it runs in the background, below client
+     * traffic.
+     */
+    private static void warmUp() {
+        String manifest = System.getenv("preload15440");
+        if (manifest == null) {
+            return;
+        }
+        List<String> paths;
         try {
-            server = (RemoteFileHandler) Naming.lookup(url);
-        } catch (NotBoundException e) {
+            paths = Warmup.readManifest(manifest);
+        } catch (IOException e) {
             e.printStackTrace();
+            return;
+        }
+        List<RefreshAhead.Fetcher> fetchers = new ArrayList<>();
+        for (int i = 0; i < WARMUP_WORKERS; i++) {
+            fetchers.add(new FileHandler(true)::fetchAhead);
         }
+        Warmup warmup = new Warmup(lruCache, router, fetchers);
+        if ("1".equals(System.getenv("preloadwait15440"))) {
+            warmup.run(paths);
+        } else {
+            warmup.start(paths);
+        }
+    }
 
-        (new RPCreceiver(new FileHandlingFactory())).run();
+    /**
+     * Serve this proxy's cache to peers on port <code>peerport15440</code>,
+     * and read from the peers listed in <code>peers15440</code> as
+     * comma separated host[:port]. Both are optional. A peer that names no
+     * port is expected on the same peer port as this proxy.
+     */
+    private static void startPeerCache() {
+        String peerPort = System.getenv("peerport15440");
+        int port = -1;
+        if (peerPort != null) {
+            port = Integer.parseInt(peerPort);
+            try {
+                LocateRegistry.createRegistry(port);
+                Naming.rebind("//localhost:" + port + "/peer",
+                        new PeerCacheServer(port, lruCache));
+                System.err.println("[ Serving peers on port: " + port + " ]");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        String peers = System.getenv("peers15440");
+        if (peers != null && !peers.isBlank()) {
+            List<String> peerUrls = new ArrayList<>();
+            for (String peer : peers.split(",")) {
+                peer = peer.trim();
+                if (!peer.contains(":") && port < 0) {
+                    System.err.println("[ Peer " + peer + " names no port and peerport15440 is unset, skipped ]");
+                    continue;
+                }
+                peerUrls.add(peer.contains(":")
+                        ? "//" + peer + "/peer"
+                        : "//" + peer + ":" + port + "/peer");
+            }
+            peerDirectory = new PeerDirectory(peerUrls, PEER_REFRESH_MS);
+        }
+    }
+
+    /**
+     * Read server endpoints from a file, one server with its replicas per
+     * line, as host[:port]+host[:port]. Blank
+     * lines and lines starting with # are skipped.
+     *
+     * @param endpointFile path to endpoints file
+     * @return endpoints listed in the file
+     * @throws IOException if the file cannot be read
+     */
+    private static List<String> readEndpoints(String endpointFile) throws IOException {
+        List<String> endpoints = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(endpointFile))) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                endpoints.add(line);
+            }
+        }
+        return endpoints;
+    }
+
+    /**
+     * Add servers and their replicas to the routing ring, skipping those
+     * already in it.
+     *
+     * @param endpoints   host[:port] of each server, followed by
+     *                    +host[:port] of each of its replicas
+     * @param defaultPort port used when an endpoint does not name one
+     * @param initial     true for the endpoints the proxy starts with
+     */
+    private static void addEndpoints(List<String> endpoints, int defaultPort, boolean initial) {
+        for (String endpoint : endpoints) {
+            String[] hosts = endpoint.trim().split("\\+");
+            List<String> replicaUrls = new ArrayList<>();
+            for (int i = 1; i < hosts.length; i++) {
+                replicaUrls.add(toUrl(hosts[i], defaultPort));
+            }
+            try {
+                router.addEndpoint(toUrl(hosts[0], defaultPort), replicaUrls, initial);
+            } catch (NotBoundException | IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Get the tuning of transfers with the server owning a path.
+     *
+     * @param path relative path on server
+     * @return tuner shared by all transfers with that server
+     */
+    private static TransferTuner tunerFor(String path) {
+        return tuners.computeIfAbsent(router.urlFor(path),
+                url -> new TransferTuner(FileHandler.MAX_CHUNK_SIZE));
+    }
+
+    private static String toUrl(String host, int defaultPort) {
+        host = host.trim();
+        return host.contains(":")
+                ? "//" + host + "/server"
+                : "//" + host + ":" + defaultPort + "/server";
     }
 
     private static class FileHandler implements FileHandling {
-        private static final int MAX_CHUNK_SIZE = 64000;
+        static final int MAX_CHUNK_SIZE = 64000;
         private final Object dirtLock = new Object();
         /**
          * A thread-safe hashmap mapping fd to {@link FdObject}
          */
-        private final Map<Integer, FdObject> fdObjectMap = new ConcurrentHashMap<>();
+        private final FdTable fdTable = new FdTable(FIRST_FD);
         /**
          * A thread-safe relative path to if-cache-dirty map
          */
         private final Map<String, Boolean> pathDirty = new ConcurrentHashMap<>();
 //        private static final int MAX_CHUNK_SIZE = 128;
+        /**
+         * Downloads of this handler are background traffic, for refreshes
+         * and warm-up
+         */
+        private final boolean background;
+
+        FileHandler() {
+            this(false);
+        }
+
+        FileHandler(boolean background) {
+            this.background = background;
+        }
+
+        /**
+         * Download a version before any client opens it.
+         *
+         * @param path     relative path on server
+         * @param fileMeta meta information on server file
+         */
+        void fetchAhead(String path, FileMeta fileMeta) {
+            File parentDirectory = new File(lruCache.getCacheRoot() + path).getParentFile();
+            if (parentDirectory != null && !parentDirectory.exists()) {
+                parentDirectory.mkdirs();
+            }
+            getFileFromServer(path, fileMeta);
+        }
 
         /**
          * Download file from server, if file too big, get file by chunks. In the meantime,
-         * sync the version number with server.
+         * sync the version number with server. If the version is replaced on
+         * the server during the download, start over on the new version. If
+         * a call fails, the bytes fetched are kept and the download resumes
+         * from them, now or on a later open. Versions up to
+         * {@link LRUCache#getPackMax} bytes are fetched into memory and packed
+         * into a segment instead.
          *
-         * @param path relative path to file
+         * @param path     relative path to file
+         * @param fileMeta meta information on server file
+         * @return meta information of the version actually in cache
          */
-        private synchronized void getFileFromServer(String path, FileMeta fileMeta) {
-            if (lruCache.getFileVersion(path) >= fileMeta.getVersion()) return;
-            System.err.println("[ Download file from server to cache ]");
-            try {
+        private synchronized FileMeta getFileFromServer(String path, FileMeta fileMeta) {
+            for (int attempt = 0; attempt < MAX_FETCH_ATTEMPTS; attempt++) {
+                if (lruCache.getFileVersion(path) >= fileMeta.getVersion()) return fileMeta;
+                System.err.println("[ Download file from server to cache ]");
                 if (!fileMeta.exists()) {
                     System.err.println("[ File doesn't exist in server ]");
-                    return;
+                    return fileMeta;
                 }
-                String cachePath = lruCache.getCacheRoot() + path + "_" + fileMeta.getVersion();
-                writeToLocal(path, fileMeta, cachePath);
+                // Another proxy sharing the cache root may have fetched it
                 synchronized (versionLock) {
-                    lruCache.put(path, fileMeta.getVersion());
+                    if (lruCache.adopt(path, fileMeta.getVersion())) {
+                        return fileMeta;
+                    }
+                }
+                try {
+                    if (fileMeta.getLength() <= lruCache.getPackMax()) {
+                        // Small enough to pack, fetched whole into memory
+                        ByteArrayOutputStream bytes =
+                                new ByteArrayOutputStream((int) fileMeta.getLength());
+                        writeToLocal(path, fileMeta, new DataOutputStream(bytes), 0);
+                        synchronized (versionLock) {
+                            lruCache.putPacked(path, fileMeta.getVersion(), bytes.toByteArray());
+                        }
+                    } else if (awaitDownload(path, fileMeta.getVersion())) {
+                        return fileMeta;
+                    } else {
+                        try {
+                            downloadToFile(path, fileMeta);
+                        } finally {
+                            lruCache.unclaimDownload(path, fileMeta.getVersion());
+                        }
+                    }
                     System.err.println("[ Updated current version: " + fileMeta.getVersion() + " ]");
+                    return fileMeta;
+                } catch (StaleVersionException e) {
+                    System.err.println("[ " + e.getMessage() + ", retrying ]");
+                    lruCache.dropPartial(path, fileMeta.getVersion());
+                    metaLeaseCache.invalidate(path);
+                    try {
+                        fileMeta = fetchFileMeta(path);
+                    } catch (RemoteException re) {
+                        re.printStackTrace(System.err);
+                        return fileMeta;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    lruCache.suspendPartial(path, fileMeta.getVersion());
+                    System.err.println("[ Download of " + path + " interrupted, resuming ]");
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
+            return fileMeta;
         }
 
         /**
-         * Write to local file. Using chunking.
+         * Claim the download of a version, or wait for the proxy sharing the
+         * cache root that claimed it and adopt its copy.
          *
-         * @param path      relative path on server
-         * @param fileMeta  meta information on server file
-         * @param cachePath the absolute cache path with version suffix
-         * @throws IOException when write error occurs
+         * @param path    relative path on server
+         * @param version version to download
+         * @return true if the copy of the other proxy was adopted, false if
+         * this proxy holds the claim and downloads it
          */
-        private void writeToLocal(String path, FileMeta fileMeta, String cachePath) throws IOException {
-            long offset = 0;
-            RandomAccessFile randomAccessFile;
-            randomAccessFile = new RandomAccessFile(cachePath, "rw");
-            RawFile rawFile;
-            while (offset < fileMeta.getLength() - MAX_CHUNK_SIZE) {
-                rawFile = server.getFile(path, MAX_CHUNK_SIZE, offset);
-
-                offset += rawFile.length();
-                randomAccessFile.write(rawFile.getBuf());
+        private boolean awaitDownload(String path, long version) {
+            boolean waited = false;
+            while (!lruCache.claimDownload(path, version)) {
+                synchronized (versionLock) {
+                    if (lruCache.adopt(path, version)) {
+                        return true;
+                    }
+                }
+                if (!waited) {
+                    System.err.println("[ Waiting for another proxy downloading " + path + " ]");
+                    waited = true;
+                }
+                try {
+                    Thread.sleep(DOWNLOAD_POLL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            // The owner may have finished between the checks
+            synchronized (versionLock) {
+                if (waited && lruCache.adopt(path, version)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Download a version into its partial download file, resuming from
+         * the bytes already there, then turn it into the read copy.
+         *
+         * @param path     relative path on server
+         * @param fileMeta meta information on server file
+         * @throws IOException when the download fails
+         */
+        private void downloadToFile(String path, FileMeta fileMeta) throws IOException {
+            String partPath = lruCache.getCacheRoot()
+                    + CacheBlock.genSuffixPath(path, fileMeta.getVersion())
+                    + LRUCache.PART_SUFFIX;
+            long offset = lruCache.beginPartial(path,
+                    fileMeta.getVersion(),
+                    fileMeta.getLength());
+            if (offset > 0) {
+                System.err.println("[ Resuming download of " + path + " at: " + offset + " ]");
+            }
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(partPath, "rw")) {
+                randomAccessFile.setLength(offset);
                 randomAccessFile.seek(offset);
+                writeToLocal(path, fileMeta, randomAccessFile, offset);
+            }
+            synchronized (versionLock) {
+                lruCache.completePartial(path, fileMeta.getVersion());
+                lruCache.put(path, fileMeta.getVersion());
+            }
+        }
+
+        /**
+         * Write to local file. Using chunking. All chunks are read from the
+         * version given by the meta data, never from a newer one. Chunk size
+         * and chunks in flight are tuned per server. Chunks are appended in
+         * order, so the output always holds a valid prefix.
+         *
+         * @param path     relative path on server
+         * @param fileMeta meta information on server file
+         * @param out      output the chunks are appended to
+         * @param offset   bytes already downloaded
+         * @throws StaleVersionException when the version is no longer on the
+         *                               server
+         * @throws IOException           when write error occurs
+         */
+        private void writeToLocal(String path,
+                                  FileMeta fileMeta,
+                                  DataOutput out,
+                                  long offset) throws IOException {
+            long version = fileMeta.getVersion();
+            long length = fileMeta.getLength();
+            TransferTuner tuner = tunerFor(path);
+            AsyncFileHandler server = router.asyncFor(path);
+            AsyncFileHandler.RequestClass requestClass = background
+                    ? AsyncFileHandler.RequestClass.PREFETCH
+                    : length <= SMALL_FETCH_MAX
+                    ? AsyncFileHandler.RequestClass.SMALL_FETCH
+                    : AsyncFileHandler.RequestClass.BULK_FETCH;
+            ArrayDeque<CompletableFuture<RawFile>> inFlight = new ArrayDeque<>();
+            ArrayDeque<Integer> inFlightSizes = new ArrayDeque<>();
+            long next = offset;
+            try {
+                while (offset < length) {
+                    while (next < length && inFlight.size() < tuner.getWindow()) {
+                        int nbytes = (int) Math.min(tuner.getChunkSize(), length - next);
+                        long chunkOffset = next;
+                        inFlight.add(server.call(requestClass,
+                                h -> timedFetch(tuner, path, version, nbytes, chunkOffset)));
+                        inFlightSizes.add(nbytes);
+                        next += nbytes;
+                    }
+                    RawFile rawFile = AsyncFileHandler.await(inFlight.poll());
+                    if (rawFile == null || rawFile.length() != inFlightSizes.poll()) {
+                        throw new StaleVersionException(path, version);
+                    }
+
+                    out.write(rawFile.getBuf());
+                    offset += rawFile.length();
+                }
+            } finally {
+                inFlight.forEach(f -> f.cancel(false));
+            }
+        }
+
+        /**
+         * Fetch a chunk and report how long it took to the tuner.
+         */
+        private RawFile timedFetch(TransferTuner tuner,
+                                   String path,
+                                   long version,
+                                   int nbytes,
+                                   long offset) throws RemoteException {
+            long start = System.nanoTime();
+            try {
+                RawFile rawFile = fetchChunk(path, version, nbytes, offset);
+                if (rawFile != null) {
+                    tuner.onSuccess(rawFile.length(), start);
+                }
+                return rawFile;
+            } catch (RemoteException e) {
+                tuner.onFailure();
+                throw e;
             }
-            rawFile = server.getFile(path,
-                    (int) (fileMeta.getLength() - offset),
-                    offset);
-            randomAccessFile.write(rawFile.getBuf());
-            randomAccessFile.close();
+        }
+
+        /**
+         * Upload a file as a new staged version, with chunk size and chunks
+         * in flight tuned per server.
+         *
+         * @param server  server owning the file
+         * @param writeId write id from beginWrite
+         * @param tuner   tuning of transfers with the server
+         * @param file    file to upload
+         * @throws IOException if reading the file or a call fails
+         */
+        private void upload(AsyncFileHandler server,
+                            long writeId,
+                            TransferTuner tuner,
+                            RandomAccessFile file) throws IOException {
+            long length = file.length();
+            ArrayDeque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+            long offset = 0;
+            try {
+                do {
+                    if (inFlight.size() >= tuner.getWindow()) {
+                        AsyncFileHandler.await(inFlight.poll());
+                    }
+                    byte[] buf = new byte[(int) Math.min(tuner.getChunkSize(), length - offset)];
+                    file.seek(offset);
+                    file.readFully(buf);
+                    long chunkOffset = offset;
+                    inFlight.add(server.call(AsyncFileHandler.RequestClass.WRITE_BACK, h -> {
+                        long start = System.nanoTime();
+                        try {
+                            h.writeFile(writeId, buf, chunkOffset);
+                            tuner.onSuccess(buf.length, start);
+                            return null;
+                        } catch (IOException e) {
+                            tuner.onFailure();
+                            throw e;
+                        }
+                    }));
+                    offset += buf.length;
+                } while (offset < length);
+                while (!inFlight.isEmpty()) {
+                    AsyncFileHandler.await(inFlight.poll());
+                }
+            } finally {
+                inFlight.forEach(f -> f.cancel(false));
+            }
+        }
+
+        /**
+         * Read a chunk of a version from a peer proxy caching it, otherwise
+         * from the server.
+         *
+         * @return chunk read, or null if the version is gone on the server
+         * @throws RemoteException if the server call fails
+         */
+        private RawFile fetchChunk(String path,
+                                   long version,
+                                   int nbytes,
+                                   long offset) throws RemoteException {
+            if (peerDirectory != null) {
+                RawFile rawFile = peerDirectory.getChunk(path, version, nbytes, offset);
+                if (rawFile != null) {
+                    return rawFile;
+                }
+            }
+            return router.getFile(path, version, nbytes, offset);
         }
 
         /**
@@ -119,15 +709,7 @@ public class Proxy {
          * @return file descriptor or -errno
          */
         public int open(String path, OpenOption o) {
-            FileMeta fileMeta = new FileMeta();
-            // Check to server every time we call open()
-            try {
-                fileMeta = server.getFileMeta(path);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-
-            Integer currFd;
+            int currFd;
             path = normalize(path);
             String cacheRoot = lruCache.getCacheRoot();
             String normCacheRoot = normalize(cacheRoot);
@@ -141,13 +723,31 @@ public class Proxy {
                 return Errors.EPERM;
             }
 
+            boolean mustExist = o == OpenOption.READ || o == OpenOption.WRITE;
+            // Known-missing path, answer without going to the server
+            if (mustExist && metaLeaseCache.isMissing(path)) {
+                System.err.println("Error: ENOENT (negative lease)");
+                return Errors.ENOENT;
+            }
+
+            // Check to server every time we call open()
+            FileMeta fileMeta;
+            try {
+                fileMeta = fetchFileMeta(path);
+            } catch (RemoteException e) {
+                // Not an answer about the file, so nothing is leased
+                e.printStackTrace(System.err);
+                System.err.println("Error: ENOENT (server unreachable)");
+                return Errors.ENOENT;
+            }
 
             if (fileMeta.exists() && o == OpenOption.CREATE_NEW) {
                 return Errors.EEXIST;
             }
             if (!fileMeta.exists()) {
-                if (o == OpenOption.READ || o == OpenOption.WRITE) {
+                if (mustExist) {
                     System.err.println("Error: ENOENT1");
+                    metaLeaseCache.putMissing(router.urlFor(path), path, fileMeta);
                     return Errors.ENOENT;
                 }
             } else if (fileMeta.isDirectory() && o != OpenOption.READ) {
@@ -155,20 +755,41 @@ public class Proxy {
                 return Errors.EISDIR;
             }
 
+            // Too large for the cache, read through a window instead
+            if (o == OpenOption.READ
+                    && !fileMeta.isDirectory()
+                    && fileMeta.getLength() > lruCache.getCapacity()
+                    && lruCache.getFileVersion(path) < fileMeta.getVersion()) {
+                return openStreaming(path, fileMeta);
+            }
+            // A write copy of it could never fit in the cache
+            if (o != OpenOption.READ
+                    && fileMeta.exists()
+                    && !fileMeta.isDirectory()
+                    && fileMeta.getLength() > lruCache.getCapacity()) {
+                System.err.println("Error: ENOMEM");
+                return Errors.ENOMEM;
+            }
+
             try {
                 if (!lruCache.contains(path)) {
-                    renderCacheMiss(path, fileMeta, cachePath);
+                    fileMeta = renderCacheMiss(path, fileMeta, cachePath);
                 } else {
-                    renderCacheHit(path, fileMeta, cachePath);
+                    fileMeta = renderCacheHit(path, fileMeta, cachePath);
                 }
             } catch (IOException e) {
                 e.printStackTrace(System.err);
             }
 
             /* Once updated, focus on local cache. */
-            CacheBlock cacheBlock = lruCache.get(path + "_" + fileMeta.getVersion());
+            CacheBlock cacheBlock = lruCache.get(path, fileMeta.getVersion());
+            if (!fileMeta.isDirectory() && cacheBlock == null) {
+                // Download failed, or the file vanished while fetching it
+                System.err.println("Error: ENOENT3");
+                return Errors.ENOENT;
+            }
             // TODO: Maybe in the wrong place
-            lruCache.P(lruCache.getSuffixPath(path));
+            lruCache.P(cacheBlock);
             File fileLocal;
             if (!fileMeta.isDirectory()) {
                 fileLocal = cacheBlock.getFile();
@@ -183,13 +804,17 @@ public class Proxy {
                         openOption = "r";
                     }
                 } else if (o == OpenOption.WRITE) {
-                    openOption = "w";
+                    // RandomAccessFile has no write-only mode
+                    openOption = "rw";
                 } else if (o == OpenOption.CREATE || o == OpenOption.CREATE_NEW) {
                     openOption = "rw";
                 } else {
                     return Errors.EINVAL;
                 }
 
+                if (!fileMeta.isDirectory()) {
+                    refreshAhead.recordOpen(path);
+                }
                 currFd = linkReadWriteCopy(path,
                         fileMeta,
                         cacheRoot,
@@ -206,6 +831,124 @@ public class Proxy {
             return currFd;
         }
 
+        /**
+         * Open a read-only session on a version larger than the cache. The
+         * version is never stored in the cache root; the session reads it
+         * through a sliding window of chunks.
+         *
+         * @param path     relative path on server
+         * @param fileMeta meta information on server file
+         * @return file descriptor
+         */
+        private int openStreaming(String path, FileMeta fileMeta) {
+            long version = fileMeta.getVersion();
+            System.err.println("[ Streaming "
+                    + path
+                    + " version "
+                    + version
+                    + ", "
+                    + fileMeta.getLength()
+                    + " bytes exceed cache ]");
+            // Chunk size is fixed for the session, read ahead follows the tuner
+            TransferTuner tuner = tunerFor(path);
+            int chunkSize = tuner.getChunkSize();
+            StreamingSource streamingSource = new StreamingSource(path,
+                    version,
+                    fileMeta.getLength(),
+                    chunkSize,
+                    Math.max(2, STREAM_WINDOW_BYTES / chunkSize),
+                    tuner::getWindow,
+                    (offset, nbytes) -> streamChunk(tuner, path, version, nbytes, offset));
+            int currFd = fdTable.allocate(new FdObject(path + "_" + version, streamingSource));
+            if (currFd < 0) {
+                streamingSource.close();
+                return Errors.EMFILE;
+            }
+            return currFd;
+        }
+
+        /**
+         * Fetch a chunk of a streamed version, scheduled as a bulk fetch and
+         * timed for the tuner.
+         */
+        private RawFile streamChunk(TransferTuner tuner,
+                                    String path,
+                                    long version,
+                                    int nbytes,
+                                    long offset) throws RemoteException {
+            try {
+                return AsyncFileHandler.await(router.asyncFor(path).call(
+                        AsyncFileHandler.RequestClass.BULK_FETCH,
+                        h -> timedFetch(tuner, path, version, nbytes, offset)));
+            } catch (RemoteException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new RemoteException(e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Get file meta data from server. Once enough files of the same
+         * directory have been asked for, prefetch the meta data of all its
+         * children so that the files further opens ask for are downloaded
+         * ahead.
+         *
+         * @param path relative path on server
+         * @return file meta data
+         * @throws RemoteException if the server could not be asked, which
+         *                         says nothing about the file
+         */
+        private FileMeta fetchFileMeta(String path) throws RemoteException {
+            FileMeta fileMeta = router.getFileMeta(path);
+            metaLeaseCache.observeEpoch(router.urlFor(path), fileMeta);
+            Path parent = FileSystems.getDefault().getPath(path).getParent();
+            String dirPath = parent == null ? "" : parent.toString();
+            if (metaLeaseCache.countDirMiss(dirPath, path)) {
+                prefetchDirectory(dirPath);
+            }
+            return fileMeta;
+        }
+
+        /**
+         * Get the meta data of all children of a directory in one call, made
+         * in the background so the open asking does not wait for it, and
+         * download the small children whose cached version is out of date.
+         * Opens of them still check the version with the server, but find
+         * it in cache.
+         *
+         * @param dirPath relative directory path on server
+         */
+        private void prefetchDirectory(String dirPath) {
+            String url = router.urlFor(dirPath);
+            router.asyncFor(dirPath).getDirectoryMeta(dirPath).whenComplete((children, e) -> {
+                if (e != null) {
+                    e.printStackTrace();
+                    return;
+                }
+                int fetches = 0;
+                for (Map.Entry<String, FileMeta> child : children.entrySet()) {
+                    String childPath = child.getKey();
+                    FileMeta childMeta = child.getValue();
+                    metaLeaseCache.observeEpoch(url, childMeta);
+                    // Only the owner of a child is authoritative for it
+                    if (fetches < DIR_PREFETCH_FILES
+                            && router.urlFor(childPath).equals(url)
+                            && childMeta.exists()
+                            && !childMeta.isDirectory()
+                            && childMeta.getLength() <= SMALL_FETCH_MAX
+                            && childMeta.getVersion() > lruCache.getFileVersion(childPath)) {
+                        dirFetchPool.execute(() -> dirFetcher.fetch(childPath, childMeta));
+                        fetches++;
+                    }
+                }
+                System.err.println("[ Prefetched meta of "
+                        + children.size()
+                        + " entries under: "
+                        + dirPath
+                        + " ]");
+            });
+        }
+
         /**
          * If the desired file is not cached:
          * 1. If non-existent on server, create new empty file both remote and
@@ -216,27 +959,26 @@ public class Proxy {
          * @param path      relative path on server
          * @param fileMeta  Meta information about file on server
          * @param cachePath local cachePath, without suffix
+         * @return meta information of the version now in cache
          * @throws IOException when file IO fails
          */
-        private void renderCacheMiss(String path,
-                                     FileMeta fileMeta,
-                                     String cachePath) throws IOException {
+        private FileMeta renderCacheMiss(String path,
+                                         FileMeta fileMeta,
+                                         String cachePath) throws IOException {
+            File parentDirectory = new File(cachePath).getParentFile();
+            if (parentDirectory != null && !parentDirectory.exists()) {
+                parentDirectory.mkdirs();
+            }
+
             if (!fileMeta.exists()) {
                 // Create empty file when file is not on server
-                if (!server.creatFile(path)) {
+                if (!router.serverFor(path).creatFile(path)) {
                     System.err.println(path + " failed to be created in Server. ");
                 }
+                metaLeaseCache.invalidate(path);
                 // Creat empty file locally
                 lruCache.put(path, 0L);
             } else {
-                File file = new File(cachePath);
-                File parentDirectory = file.getParentFile();
-
-                while (parentDirectory != null && !parentDirectory.exists()) {
-                    parentDirectory.mkdir();
-                    parentDirectory = parentDirectory.getParentFile();
-                }
-
                 if (fileMeta.isDirectory()) {
                     File dirFile = new File(cachePath);
                     if (!dirFile.mkdir()) {
@@ -245,9 +987,10 @@ public class Proxy {
                 } else {
                     // If remote file exists then fetch from server, put into
                     // cache and update version number
-                    getFileFromServer(path, fileMeta);
+                    return getFileFromServer(path, fileMeta);
                 }
             }
+            return fileMeta;
         }
 
         /**
@@ -257,10 +1000,11 @@ public class Proxy {
          * @param path      relative original path on server
          * @param fileMeta  Meta information about file on server
          * @param cachePath absolute cache path without suffix
+         * @return meta information of the version now in cache
          */
-        private void renderCacheHit(String path,
-                                    FileMeta fileMeta,
-                                    String cachePath) {
+        private FileMeta renderCacheHit(String path,
+                                        FileMeta fileMeta,
+                                        String cachePath) {
             long localVersion = lruCache.getFileVersion(path);
             long remoteVersion = fileMeta.getVersion();
             System.err.println("[ Local version: " + localVersion + " ]");
@@ -273,53 +1017,92 @@ public class Proxy {
                         System.err.println("Error creating local directory. ");
                     }
                 } else {
-                    getFileFromServer(path, fileMeta);
+                    return getFileFromServer(path, fileMeta);
                 }
             } else {
                 System.err.println(path + " already up to date. ");
             }
+            return fileMeta;
         }
 
         /**
          * Link file descriptor with read copy (at most one for each version),
-         * or write copy (one for each writer), by putting the pair into
-         * hashmap. Responsibility includes creating write copy.
+         * or write copy (one for each writer), by putting the session into
+         * the fd table. Responsibility includes creating write copy.
          *
          * @param path       relative path on server
          * @param fileMeta   meta information about file on server
          * @param cacheRoot  local cache root directory
          * @param openOption permission flag for random access file
-         * @return the file descriptor associated with curr session.
+         * @return the file descriptor associated with curr session, or
+         * EMFILE if the client has too many open
          * @throws FileNotFoundException
          */
-        private Integer linkReadWriteCopy(String path,
-                                          FileMeta fileMeta,
-                                          String cacheRoot,
-                                          String openOption) throws FileNotFoundException {
-            Integer currFd;
-            currFd = fetchFd();
-
+        private int linkReadWriteCopy(String path,
+                                      FileMeta fileMeta,
+                                      String cacheRoot,
+                                      String openOption) throws FileNotFoundException {
+            FdObject fdObject;
             if (openOption.equals("")) {
-                fdObjectMap.put(currFd, new FdObject(path));
+                fdObject = new FdObject(path);
             } else if (openOption.contains("w")) {
                 /*
                  * If current session have "write" permission:
                  * 1. Make new file: write copy in cache
-                 * 2. Put the fd -> write copy RAF connection into fd object map
+                 * 2. Put the write copy RAF connection into the fd table
                  */
-                var writeCopyPath =
-                        lruCache.putWriteCopy(path, currFd, fileMeta.getVersion());
-                fdObjectMap.put(currFd,
-                        new FdObject(cacheRoot, writeCopyPath, openOption));
+                var writeCopyPath = lruCache.putWriteCopy(path,
+                        writeCopySeq.getAndIncrement(),
+                        fileMeta.getVersion());
+                fdObject = new FdObject(cacheRoot, writeCopyPath, openOption);
             } else {
-                // Read only situation
+                // Read only situation, served from the shared read copy
                 String readCopyPath = path + "_" + fileMeta.getVersion();
-                fdObjectMap.put(currFd,
-                        new FdObject(cacheRoot, readCopyPath, openOption));
+                try {
+                    long packedLength = lruCache.packedLength(readCopyPath);
+                    ReadSource packed = packedLength < 0
+                            ? null
+                            : readSources.acquirePacked(cacheRoot + readCopyPath,
+                                    packedLength,
+                                    () -> lruCache.readPacked(readCopyPath));
+                    fdObject = new FdObject(readCopyPath,
+                            packed != null
+                                    ? packed
+                                    : readSources.acquire(cacheRoot + readCopyPath));
+                } catch (IOException e) {
+                    e.printStackTrace(System.err);
+                    fdObject = new FdObject(cacheRoot, readCopyPath, openOption);
+                }
+            }
+            int currFd = fdTable.allocate(fdObject);
+            if (currFd < 0) {
+                System.err.println("Error: EMFILE");
+                abandon(fdObject);
+                return Errors.EMFILE;
             }
             return currFd;
         }
 
+        /**
+         * Undo the open of a session that got no file descriptor.
+         *
+         * @param fdObject session opened
+         */
+        private void abandon(FdObject fdObject) {
+            if (fdObject.isDirectory()) {
+                return;
+            }
+            fdObject.closeRAF();
+            if (fdObject.getReadSource() != null) {
+                readSources.release(fdObject.getReadSource());
+            }
+            if (lruCache.isWriteCopy(fdObject.getPath())) {
+                lruCache.discardWriteCopy(fdObject.getPath());
+            } else {
+                lruCache.V(fdObject.getPath());
+            }
+        }
+
         /**
          * Handle close() RPC call from client. Decrement the reference counter
          * on the file. On read close: Check if the file is still being open
@@ -328,14 +1111,22 @@ public class Proxy {
          * remove from cache and delete on disk.
          *
          * @param fd file descriptor
-         * @return 0 on success,
+         * @return 0 on success, ENOMEM if buffered writes could not be
+         * written to the write copy, which is then discarded
          */
         public synchronized int close(int fd) {
             System.err.println("[ Closing fd: " + fd + " ]");
             /*---------- Errors handling ----------*/
-            if (!fdObjectMap.containsKey(fd)) return Errors.EBADF;
-            if (fdObjectMap.get(fd).isDirectory()) {
-                fdObjectMap.remove(fd);
+            FdObject fdObject = fdTable.get(fd);
+            if (fdObject == null) return Errors.EBADF;
+            if (fdObject.isDirectory()) {
+                fdTable.remove(fd);
+                return 0;
+            }
+            if (fdObject.getReadSource() instanceof StreamingSource) {
+                // Never in the cache, nothing to release but the window
+                fdTable.remove(fd);
+                ((StreamingSource) fdObject.getReadSource()).close();
                 return 0;
             }
             /*-------------------------------------*/
@@ -344,9 +1135,21 @@ public class Proxy {
              * Already dealt with fd being a directory,
              * following fds is valid file, not directory.
              */
-            String path = fdObjectMap.get(fd).getPath();
-            fdObjectMap.get(fd).closeRAF();
-            if (!lruCache.isFileDirty(path)) {
+            String path = fdObject.getPath();
+            if (!fdObject.closeRAF() && lruCache.isWriteCopy(path)) {
+                // Bytes write() accepted are missing, never upload the copy
+                System.err.println("[ Write copy " + path + " is incomplete, discarded ]");
+                fdTable.remove(fd);
+                lruCache.discardWriteCopy(path);
+                return Errors.ENOMEM;
+            }
+            if (fdObject.getReadSource() != null) {
+                readSources.release(fdObject.getReadSource());
+            }
+            if (lruCache.isWriteCopy(path) && !lruCache.isFileDirty(path)) {
+                // Nothing written, drop the write copy
+                lruCache.discardWriteCopy(path);
+            } else if (!lruCache.isFileDirty(path)) {
                 lruCache.get(path);
                 lruCache.V(path);
             }
@@ -355,31 +1158,40 @@ public class Proxy {
             try {
                 /* If path marked dirty cache, then write back to server. */
                 if (lruCache.isFileDirty(path)) {
-                    FileMeta fileMeta = server.getFileMeta(lruCache.getOrigPath(path));
+                    String origPath = lruCache.getOrigPath(path);
+                    FileMeta fileMeta = router.getFileMeta(origPath);
                     /* If the file in server has not been deleted */
                     if (fileMeta.exists()) {
-                        /* Upload file from cache to server */
+                        /* Upload file from cache to server as a new version */
                         System.err.println("[ Upload file from cache to server ]");
-                        RandomAccessFile randomAccessFile =
-                                new RandomAccessFile(
-                                        normalize(lruCache.getCacheRoot() + path),
-                                        "r");
-                        long offset = 0;
-                        byte[] buf = new byte[MAX_CHUNK_SIZE];
-                        while (offset < randomAccessFile.length() - MAX_CHUNK_SIZE) {
-                            randomAccessFile.seek(offset);
-                            randomAccessFile.read(buf);
-                            server.writeFile(lruCache.getOrigPath(path), buf, offset);
-                            offset += MAX_CHUNK_SIZE;
+                        AsyncFileHandler server = router.asyncFor(origPath);
+                        long newVersion;
+                        try (RandomAccessFile randomAccessFile =
+                                     new RandomAccessFile(
+                                             normalize(lruCache.getCacheRoot() + path),
+                                             "r")) {
+                            long writeId = AsyncFileHandler.await(server.beginWrite(origPath));
+                            try {
+                                TransferTuner tuner = tunerFor(origPath);
+                                upload(server, writeId, tuner, randomAccessFile);
+                                System.err.println("[ Uploaded "
+                                        + randomAccessFile.length()
+                                        + " bytes, "
+                                        + tuner
+                                        + " ]");
+                                newVersion = AsyncFileHandler.await(server.commitWrite(writeId,
+                                        lruCache.getFileVersion(origPath) + 1));
+                            } catch (IOException e) {
+                                // Free the staged version now, not when it expires
+                                server.abortWrite(writeId).exceptionally(t -> {
+                                    System.err.println("[ Abort of write " + writeId
+                                            + " failed: " + t.getMessage() + " ]");
+                                    return null;
+                                });
+                                throw e;
+                            }
                         }
-                        buf = new byte[(int) (randomAccessFile.length() - offset)];
-                        System.err.println("[ buf:" + buf.length + " ]");
-                        randomAccessFile.seek(offset);
-                        randomAccessFile.read(buf);
-                        long newVersion =
-                                server.writeFile(lruCache.getOrigPath(path),
-                                        buf,
-                                        offset);
+                        metaLeaseCache.invalidate(origPath);
                         synchronized (versionLock) {
                             lruCache.setFileVersion(lruCache.getOrigPath(path),
                                     newVersion);
@@ -395,7 +1207,7 @@ public class Proxy {
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            fdObjectMap.remove(fd);
+            fdTable.remove(fd);
             lruCache.printCache();
             return 0;
         }
@@ -409,15 +1221,17 @@ public class Proxy {
          */
         public long write(int fd, byte[] buf) {
             /*---------- Errors handling ----------*/
-            if (!fdObjectMap.containsKey(fd)) return Errors.EBADF;
+            FdObject writeFile = fdTable.get(fd);
+            if (writeFile == null) return Errors.EBADF;
             /*-------------------------------------*/
 
-            RandomAccessFile writeFile = fdObjectMap.get(fd).getRAF();
             try {
                 writeFile.write(buf);
-                synchronized (dirtLock) {
-                    lruCache.setDirtyStatus(fdObjectMap.get(fd).getPath(),
-                            true);
+                // Mark the write copy dirty once per session
+                if (writeFile.markDirty()) {
+                    synchronized (dirtLock) {
+                        lruCache.setDirtyStatus(writeFile.getPath(), true);
+                    }
                 }
             } catch (IOException e) {
                 e.printStackTrace(System.err);
@@ -437,11 +1251,11 @@ public class Proxy {
          */
         public long read(int fd, byte[] buf) {
             /*---------- Errors handling ----------*/
-            if (!fdObjectMap.containsKey(fd)) return Errors.EBADF;
-            if (fdObjectMap.get(fd).isDirectory()) return Errors.EISDIR;
+            FdObject readFile = fdTable.get(fd);
+            if (readFile == null) return Errors.EBADF;
+            if (readFile.isDirectory()) return Errors.EISDIR;
             /*-------------------------------------*/
 
-            RandomAccessFile readFile = fdObjectMap.get(fd).getRAF();
             try {
                 int rd = readFile.read(buf);
                 if (rd == -1) return 0;
@@ -462,11 +1276,11 @@ public class Proxy {
          */
         public long lseek(int fd, long pos, FileHandling.LseekOption o) {
             /*---------- Errors handling ----------*/
-            if (!fdObjectMap.containsKey(fd)) return Errors.EBADF;
+            FdObject randomAccessFile = fdTable.get(fd);
+            if (randomAccessFile == null) return Errors.EBADF;
             if (pos < 0) return Errors.EINVAL;
             /*-------------------------------------*/
 
-            RandomAccessFile randomAccessFile = fdObjectMap.get(fd).getRAF();
             try {
                 switch (o) {
                     case FROM_START:
@@ -509,15 +1323,22 @@ public class Proxy {
                 return Errors.EPERM;
             }
 
+            if (metaLeaseCache.isMissing(path)) {
+                return Errors.ENOENT;
+            }
+
             FileMeta fileMeta;
             try {
-                fileMeta = server.getFileMeta(path);
+                fileMeta = router.getFileMeta(path);
+                metaLeaseCache.observeEpoch(router.urlFor(path), fileMeta);
                 if (fileMeta.exists()) {
                     if (fileMeta.isDirectory()) {
                         return Errors.ENOENT;
                     }
-                    server.unlink(path);
+                    router.serverFor(path).unlink(path);
+                    metaLeaseCache.invalidate(path);
                 } else {
+                    metaLeaseCache.putMissing(router.urlFor(path), path, fileMeta);
                     return Errors.ENOENT;
                 }
                 lruCache.unlinkBlock(path);
@@ -533,13 +1354,13 @@ public class Proxy {
          * Clean up after client has finished procedure.
          */
         public void clientdone() {
-            for (int fd : fdObjectMap.keySet()) {
-                RandomAccessFile randomAccessFile = fdObjectMap.get(fd).getRAF();
-                fdObjectMap.remove(fd);
-                try {
-                    randomAccessFile.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            for (FdObject fdObject : fdTable.removeAll()) {
+                fdObject.closeRAF();
+                ReadSource readSource = fdObject.getReadSource();
+                if (readSource instanceof StreamingSource) {
+                    ((StreamingSource) readSource).close();
+                } else if (readSource != null) {
+                    readSources.release(readSource);
                 }
             }
         }
@@ -557,10 +1378,6 @@ public class Proxy {
                     .toString();
         }
 
-        private synchronized Integer fetchFd() {
-            return fd++;
-        }
-
     }
 
     private static class FileHandlingFactory implements FileHandlingMaking {
@@ -0,0 +1,28 @@
+import java.io.IOException;
+
+/**
+ * Read-only contents of a cached version, shared by all read-only sessions
+ * on it. Sessions keep their own position and read at it.
+ */
+public interface ReadSource {
+
+    long length();
+
+    /**
+     * Copy bytes starting at a position into a buffer.
+     *
+     * @param pos position in file
+     * @param buf buffer to fill
+     * @return number of bytes copied, -1 at end of file
+     * @throws IOException if the read fails
+     */
+    int read(long pos, byte[] buf) throws IOException;
+
+    /**
+     * Release the resources held, called after the last session closed.
+     *
+     * @throws IOException if closing fails
+     */
+    void close() throws IOException;
+
+}
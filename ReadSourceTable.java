@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Read sources of read copies, one per file, refcounted by the read-only
+ * sessions using them, like the cache block they read. Files up to
+ * {@link #MAP_THRESHOLD} are mapped into memory; larger ones are read
+ * through one shared channel, so the address space is not exhausted by
+ * many huge files. Hot small files are served from the memory tier
+ * instead, packed ones included. A source is closed with its last session.
+ */
+public class ReadSourceTable {
+    /**
+     * Largest read copy that is mapped instead of read through a channel
+     */
+    private static final long MAP_THRESHOLD = 64L * 1024 * 1024;
+    /**
+     * Identity of read copies packed in a segment, in the memory tier
+     */
+    private static final Object PACKED = "packed";
+    /**
+     * Maps file identity to its source. Identity includes the inode, so a
+     * path reused by a later file of the same name gets its own source.
+     */
+    private final Map<String, ReadSource> sourceMap = new HashMap<>();
+    /**
+     * Maps source to the number of sessions reading it
+     */
+    private final Map<ReadSource, Integer> refCnt = new IdentityHashMap<>();
+    private final MemoryTier memoryTier;
+
+    public ReadSourceTable(MemoryTier memoryTier) {
+        this.memoryTier = memoryTier;
+    }
+
+    /**
+     * Get the source of a file, opening it on first use.
+     *
+     * @param absPath absolute path of the read copy
+     * @return source, to be released on close
+     * @throws IOException if the file cannot be opened
+     */
+    public synchronized ReadSource acquire(String absPath) throws IOException {
+        Path path = Paths.get(absPath);
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        ReadSource inMemory = memoryTier.acquire(absPath, attrs.fileKey(), attrs.size());
+        if (inMemory != null) {
+            return inMemory;
+        }
+        String key = identity(path, attrs);
+        ReadSource readSource = sourceMap.get(key);
+        if (readSource == null) {
+            readSource = attrs.size() <= MAP_THRESHOLD
+                    ? new MappedFile(path)
+                    : new SharedChannel(path);
+            sourceMap.put(key, readSource);
+        }
+        refCnt.merge(readSource, 1, Integer::sum);
+        return readSource;
+    }
+
+    /**
+     * Get the source of a read copy packed in a segment: its contents in the
+     * memory tier once it is hot, otherwise read from the segment.
+     *
+     * @param absPath absolute path of the read copy, as if it were a file
+     * @param length  length of the packed version
+     * @param reader  reads the packed version
+     * @return source, to be released on close, or null if the read copy is
+     * not packed
+     * @throws IOException if the segment cannot be read
+     */
+    public ReadSource acquirePacked(String absPath, long length, PackedReader reader)
+            throws IOException {
+        ReadSource inMemory = memoryTier.acquire(absPath, PACKED, length, () -> {
+            byte[] data = reader.read();
+            return data == null ? null : ByteBuffer.allocateDirect(data.length).put(data).flip();
+        });
+        if (inMemory != null) {
+            return inMemory;
+        }
+        byte[] data = reader.read();
+        return data == null ? null : new SegmentStore.PackedFile(data);
+    }
+
+    /**
+     * Reads a packed version.
+     */
+    public interface PackedReader {
+        /**
+         * @return contents, or null if the version is no longer packed
+         * @throws IOException if the segment cannot be read
+         */
+        byte[] read() throws IOException;
+    }
+
+    /**
+     * Release a source when a session closes.
+     *
+     * @param readSource source returned by acquire
+     */
+    public synchronized void release(ReadSource readSource) {
+        if (readSource instanceof MemoryTier.MemoryFile) {
+            memoryTier.release((MemoryTier.MemoryFile) readSource);
+            return;
+        }
+        Integer cnt = refCnt.get(readSource);
+        if (cnt == null) {
+            return;
+        }
+        if (cnt > 1) {
+            refCnt.put(readSource, cnt - 1);
+            return;
+        }
+        refCnt.remove(readSource);
+        sourceMap.values().remove(readSource);
+        try {
+            readSource.close();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    private static String identity(Path path, BasicFileAttributes attrs) {
+        Object fileKey = attrs.fileKey();
+        return path + "|" + (fileKey != null
+                ? fileKey
+                : attrs.lastModifiedTime() + "|" + attrs.size());
+    }
+}
@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the hottest cached files up to date in the background. Opens are
+ * counted per file, with counts halved every few rounds so hotness follows
+ * recent traffic. Every round the hottest cached files are revalidated with
+ * one batched metadata call per server, and a newer version found is
+ * fetched before a client asks for it. Opens still check the version with
+ * the server; they just find it cached. Fetches are paced by a token bucket,
+ * so refreshing never takes more than its share of the bandwidth.
+ */
+public class RefreshAhead {
+    /**
+     * Files tracked at most; colder ones are forgotten beyond this
+     */
+    private static final int MAX_TRACKED = 10000;
+    /**
+     * Rounds between halvings of the open counts
+     */
+    private static final int AGE_EVERY_ROUNDS = 10;
+    /**
+     * Rounds between exports of the hot set
+     */
+    private static final int EXPORT_EVERY_ROUNDS = 30;
+    /**
+     * Paths written to the hot set at most
+     */
+    private static final int HOT_SET_SIZE = 1000;
+
+    /**
+     * Fetches a newer version of a cached file into the cache.
+     */
+    public interface Fetcher {
+        void fetch(String path, FileMeta fileMeta);
+    }
+
+    private final LRUCache lruCache;
+    private final ServerRouter router;
+    private final MetaLeaseCache metaLeaseCache;
+    private final Fetcher fetcher;
+    private final long intervalMs;
+    private final int hotEntries;
+    private final long bytesPerSec;
+    /**
+     * Maps relative original path to its recent opens
+     */
+    private final Map<String, Integer> opens;
+    /**
+     * Bytes the refresher may fetch now, negative while paying off a file
+     * larger than the bucket
+     */
+    private double tokens;
+    private long lastRefill;
+    private int rounds = 0;
+    /**
+     * File the hot set is exported to, null if none
+     */
+    private volatile String hotSetFile;
+
+    /**
+     * @param intervalMs  time between revalidation rounds
+     * @param hotEntries  files revalidated per round
+     * @param bytesPerSec average bytes fetched per second at most
+     */
+    public RefreshAhead(LRUCache lruCache,
+                        ServerRouter router,
+                        MetaLeaseCache metaLeaseCache,
+                        Fetcher fetcher,
+                        long intervalMs,
+                        int hotEntries,
+                        long bytesPerSec) {
+        this.lruCache = lruCache;
+        this.router = router;
+        this.metaLeaseCache = metaLeaseCache;
+        this.fetcher = fetcher;
+        this.intervalMs = intervalMs;
+        this.hotEntries = hotEntries;
+        this.bytesPerSec = bytesPerSec;
+        this.opens = new ConcurrentHashMap<>();
+        this.tokens = bytesPerSec;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public void start() {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMs);
+                    refresh();
+                    if (hotSetFile != null && rounds % EXPORT_EVERY_ROUNDS == 0) {
+                        exportHotSet(hotSetFile);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "refresh-ahead");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Export the hot set to a file every few rounds, as a manifest another
+     * proxy can warm its cache from.
+     *
+     * @param hotSetFile path of the file
+     */
+    public void setHotSetFile(String hotSetFile) {
+        this.hotSetFile = hotSetFile;
+    }
+
+    /**
+     * Write the most opened files, hottest first, one per line. The file is
+     * replaced atomically, so a reader never sees half of it.
+     *
+     * @param file path of the file
+     */
+    public void exportHotSet(String file) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(opens.entrySet());
+        entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        List<String> lines = new ArrayList<>();
+        lines.add("# Hot set, hottest first");
+        for (Map.Entry<String, Integer> entry : entries) {
+            if (lines.size() > HOT_SET_SIZE) {
+                break;
+            }
+            lines.add(entry.getKey());
+        }
+        try {
+            Path target = Paths.get(file);
+            Path tmp = Paths.get(file + ".tmp");
+            Files.write(tmp, lines);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[ Cannot export hot set: " + e.getMessage() + " ]");
+        }
+    }
+
+    /**
+     * Count an open of a file.
+     *
+     * @param path relative original path on server
+     */
+    public void recordOpen(String path) {
+        if (opens.size() >= MAX_TRACKED && !opens.containsKey(path)) {
+            return;
+        }
+        opens.merge(path, 1, Integer::sum);
+    }
+
+    /**
+     * Revalidate the hottest cached files and fetch the ones that changed.
+     */
+    private void refresh() {
+        int refreshed = 0;
+        Map<String, List<String>> byServer = new HashMap<>();
+        for (String path : hottest()) {
+            byServer.computeIfAbsent(router.urlFor(path), url -> new ArrayList<>()).add(path);
+        }
+        for (Map.Entry<String, List<String>> entry : byServer.entrySet()) {
+            List<String> paths = entry.getValue();
+            List<FileMeta> fileMetas;
+            try {
+                fileMetas = AsyncFileHandler.await(router.asyncFor(paths.get(0)).call(
+                        AsyncFileHandler.RequestClass.PREFETCH,
+                        h -> h.getFileMetaBatch(paths)));
+            } catch (IOException e) {
+                System.err.println("[ Refresh of " + entry.getKey() + " failed: " + e.getMessage() + " ]");
+                continue;
+            }
+            for (int i = 0; i < paths.size(); i++) {
+                String path = paths.get(i);
+                FileMeta fileMeta = fileMetas.get(i);
+                metaLeaseCache.observeEpoch(entry.getKey(), fileMeta);
+                if (!fileMeta.exists()) {
+                    // Spares the next open of it a round trip
+                    metaLeaseCache.putMissing(entry.getKey(), path, fileMeta);
+                    continue;
+                }
+                if (fileMeta.isDirectory()
+                        || fileMeta.getVersion() <= lruCache.getFileVersion(path)
+                        || fileMeta.getLength() > lruCache.getCapacity()
+                        || !take(fileMeta.getLength())) {
+                    continue;
+                }
+                System.err.println("[ Refresh ahead: " + path + " version " + fileMeta.getVersion() + " ]");
+                fetcher.fetch(path, fileMeta);
+                if (lruCache.getFileVersion(path) >= fileMeta.getVersion()) {
+                    refreshed++;
+                }
+            }
+        }
+        if (refreshed > 0) {
+            System.err.println("[ Refreshed ahead " + refreshed + " files ]");
+        }
+    }
+
+    /**
+     * Get the cached files opened most in the last rounds, and age the open
+     * counts every few rounds.
+     */
+    private List<String> hottest() {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(opens.entrySet());
+        entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        List<String> paths = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : entries) {
+            if (paths.size() >= hotEntries) {
+                break;
+            }
+            if (lruCache.getFileVersion(entry.getKey()) >= 0) {
+                paths.add(entry.getKey());
+            }
+        }
+        if (++rounds % AGE_EVERY_ROUNDS == 0) {
+            opens.replaceAll((path, cnt) -> cnt / 2);
+            opens.values().removeIf(cnt -> cnt == 0);
+        }
+        return paths;
+    }
+
+    /**
+     * Take bytes from the token bucket, which holds one second of budget.
+     *
+     * @return false if the budget is spent
+     */
+    private boolean take(long bytes) {
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSec, tokens + (now - lastRefill) * bytesPerSec / 1e9);
+        lastRefill = now;
+        if (tokens <= 0) {
+            return false;
+        }
+        tokens -= bytes;
+        return true;
+    }
+}
@@ -1,19 +1,41 @@
 import java.io.IOException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
 
 public interface RemoteFileHandler extends Remote {
 
-    RawFile getFile(String path, int nbytes, long offset) throws RemoteException;
+    RawFile getFile(String path, long version, int nbytes, long offset) throws RemoteException;
 
     boolean creatFile(String path) throws IOException;
 
-    long writeFile(String path, byte[] buf, long offset) throws RemoteException;
+    long beginWrite(String path) throws IOException;
+
+    void writeFile(long writeId, byte[] buf, long offset) throws IOException;
+
+    long commitWrite(long writeId, long minVersion) throws IOException;
+
+    void abortWrite(long writeId) throws RemoteException;
+
+    long beginMigration(String path) throws IOException;
+
+    long commitMigration(long writeId, long minVersion) throws IOException;
+
+    void abortMigration(long writeId) throws RemoteException;
 
     FileMeta getFileMeta(String path) throws RemoteException;
 
+    List<FileMeta> getFileMetaBatch(List<String> paths) throws RemoteException;
+
+    Map<String, FileMeta> getDirectoryMeta(String path) throws RemoteException;
+
     long getFileVersion(String path) throws RemoteException;
 
     void unlink(String path) throws IOException;
 
+    List<VersionEvent> getVersionEvents(long afterSeq) throws RemoteException;
+
+    int getBulkPort() throws RemoteException;
+
 }
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.rmi.Naming;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a read-only replica in step with its primary. The follower polls the
+ * primary's version events and copies each new version, so popular files are
+ * on the replica before proxies ask for them. Files that were not changed
+ * since the replica started are copied on their first read that misses.
+ */
+public class ReplicaFollower {
+    /**
+     * How often the primary is polled for new versions
+     */
+    private static final long POLL_MS = 200;
+    /**
+     * Bytes per getFile call when copying from the primary
+     */
+    private static final int COPY_CHUNK_SIZE = 1024 * 1024;
+    private final Server replica;
+    private final String primaryUrl;
+    private RemoteFileHandler primary;
+    /**
+     * Sequence number of the last primary event applied
+     */
+    private long lastSeq = 0;
+    /**
+     * Relative paths read on the replica before their version arrived
+     */
+    private final BlockingQueue<String> fillQueue;
+    private final Set<String> pendingFills;
+
+    public ReplicaFollower(Server replica, String primaryUrl) {
+        this.replica = replica;
+        this.primaryUrl = primaryUrl;
+        this.fillQueue = new LinkedBlockingQueue<>();
+        this.pendingFills = ConcurrentHashMap.newKeySet();
+    }
+
+    public void start() {
+        Thread t = new Thread(this::run, "replica-follower");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Ask for the current version of a file to be copied from the primary.
+     *
+     * @param path relative path on server
+     */
+    public void requestFill(String path) {
+        if (pendingFills.add(path)) {
+            fillQueue.add(path);
+        }
+    }
+
+    private void run() {
+        long nextPoll = 0;
+        while (true) {
+            try {
+                if (primary == null) {
+                    primary = (RemoteFileHandler) Naming.lookup(primaryUrl);
+                    System.err.println("[ Following primary: " + primaryUrl + " ]");
+                }
+                if (System.nanoTime() - nextPoll >= 0) {
+                    pollEvents();
+                    nextPoll = System.nanoTime() + POLL_MS * 1_000_000L;
+                }
+                String path = fillQueue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (path != null) {
+                    pendingFills.remove(path);
+                    FileMeta fileMeta = primary.getFileMeta(path);
+                    if (fileMeta.exists() && !fileMeta.isDirectory()) {
+                        copy(path, fileMeta.getVersion(), fileMeta.getLength());
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("[ Cannot reach primary " + primaryUrl + ": " + e + " ]");
+                primary = null;
+                try {
+                    Thread.sleep(POLL_MS * 10);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the primary's events since the last poll, one page at a time.
+     */
+    private void pollEvents() throws IOException {
+        List<VersionEvent> events;
+        do {
+            events = primary.getVersionEvents(lastSeq);
+            if (events == null) {
+                replica.resetVersions();
+                lastSeq = 0;
+                return;
+            }
+            for (VersionEvent event : events) {
+                if (!event.exists()) {
+                    replica.removeFile(event.getPath());
+                } else {
+                    copy(event.getPath(), event.getVersion(), event.getLength());
+                }
+                lastSeq = event.getSeq();
+            }
+        } while (events.size() == VersionLog.MAX_EVENTS_PER_CALL);
+    }
+
+    /**
+     * Copy one version of a file from the primary, unless the replica
+     * already holds it or a newer one. A version replaced on the primary
+     * during the copy is skipped; its successor has its own event.
+     */
+    private void copy(String path, long version, long length) throws IOException {
+        if (replica.localVersion(path) >= version) {
+            return;
+        }
+        long writeId = replica.beginReplicaWrite(path);
+        long offset = 0;
+        while (offset < length) {
+            int nbytes = (int) Math.min(COPY_CHUNK_SIZE, length - offset);
+            RawFile rawFile = primary.getFile(path, version, nbytes, offset);
+            if (rawFile == null) {
+                replica.abortReplicaWrite(writeId);
+                return;
+            }
+            replica.writeFile(writeId, rawFile.getBuf(), offset);
+            offset += nbytes;
+        }
+        replica.applyVersion(writeId, version);
+    }
+}
@@ -0,0 +1,350 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Packs small read copies into large append-only segment files, so a cached
+ * version costs an index entry instead of a file of its own: no inode,
+ * directory entry, create, rename or delete per version. Versions are
+ * appended to the active segment; a full segment is sealed and a new one
+ * started. Removing a version only leaves dead space behind. A sealed
+ * segment whose live bytes fall below {@link #COMPACT_LIVE_RATIO} of its
+ * size is compacted: its live versions are copied to the active segment and
+ * the file is deleted. Dead space still takes disk, so it is reported to
+ * the cache as used; under pressure {@link #compactAll} reclaims all of it,
+ * the active segment included.
+ *
+ * <p>Segments are private to the proxy that wrote them and are named after
+ * its process id, so proxies sharing a cache root do not collide. Segments
+ * of proxies no longer running are deleted on start.
+ *
+ * <p>Reads only look up the extent under the store's lock and read the
+ * segment outside it, so reads of different versions run in parallel. A
+ * read that raced with the version being moved or replaced is retried.
+ */
+public class SegmentStore {
+    /**
+     * Directory of the segments, under the cache root
+     */
+    public static final String SEGMENT_DIR = ".segments/";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    /**
+     * Most bytes appended to a segment before it is sealed
+     */
+    public static final long SEGMENT_SIZE = 4L * 1024 * 1024;
+    /**
+     * Fraction of live bytes below which a sealed segment is compacted
+     */
+    private static final double COMPACT_LIVE_RATIO = 0.25;
+    private static final long PID = ProcessHandle.current().pid();
+
+    private final String dir;
+    /**
+     * Bytes appended to a segment before it is sealed
+     */
+    private final long segmentSize;
+    /**
+     * Maps key of a version, such as its cache block, to where it is packed.
+     * Keys are compared with equals, so a block is its own key.
+     */
+    private final Map<Object, Extent> extents;
+    private Segment active;
+    private int nextId = 0;
+    private long compactedBytes = 0;
+    /**
+     * Bytes of all segments no longer holding a live version
+     */
+    private long deadBytes = 0;
+
+    /**
+     * Contents of a packed version, read into memory for a read-only
+     * session.
+     */
+    public static class PackedFile implements ReadSource {
+        private final byte[] data;
+
+        PackedFile(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public long length() {
+            return data.length;
+        }
+
+        @Override
+        public int read(long pos, byte[] buf) {
+            if (pos >= data.length) {
+                return -1;
+            }
+            int n = (int) Math.min(buf.length, data.length - pos);
+            System.arraycopy(data, (int) pos, buf, 0, n);
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class Extent {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        Extent(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final FileChannel channel;
+        /**
+         * Keys of the versions packed in this segment
+         */
+        private final Set<Object> keys = new HashSet<>();
+        private long size = 0;
+        private long live = 0;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    /**
+     * @param cacheRoot   cache root directory, with a trailing separator
+     * @param segmentSize bytes appended to a segment before it is sealed
+     */
+    public SegmentStore(String cacheRoot, long segmentSize) {
+        this.dir = cacheRoot + SEGMENT_DIR;
+        this.segmentSize = segmentSize;
+        this.extents = new HashMap<>();
+        File segmentDir = new File(dir);
+        segmentDir.mkdirs();
+        File[] files = segmentDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!isOwnerAlive(file.getName())) {
+                System.err.println("[ Delete orphaned segment: " + file.getName() + " ]");
+                file.delete();
+            }
+        }
+    }
+
+    private static boolean isOwnerAlive(String name) {
+        int sep = name.indexOf('_');
+        if (sep <= 0 || !name.endsWith(SEGMENT_SUFFIX)) {
+            return true;
+        }
+        try {
+            long pid = Long.parseLong(name.substring(0, sep));
+            return pid != PID && ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Append a version to the active segment.
+     *
+     * @param key  key of the version
+     * @param data contents of the version
+     * @throws IOException if the segment cannot be written
+     */
+    public synchronized void put(Object key, byte[] data) throws IOException {
+        remove(key);
+        append(key, data);
+    }
+
+    private void append(Object key, byte[] data) throws IOException {
+        if (active == null || active.size + data.length > segmentSize) {
+            active = new Segment(new File(dir + PID + "_" + nextId++ + SEGMENT_SUFFIX));
+        }
+        ByteBuffer src = ByteBuffer.wrap(data);
+        while (src.hasRemaining()) {
+            active.channel.write(src, active.size + src.position());
+        }
+        extents.put(key, new Extent(active, active.size, data.length));
+        active.keys.add(key);
+        active.size += data.length;
+        active.live += data.length;
+    }
+
+    /**
+     * Read a packed version.
+     *
+     * @param key key of the version
+     * @return contents, or null if the version is not packed
+     * @throws IOException if the segment cannot be read
+     */
+    public byte[] read(Object key) throws IOException {
+        while (true) {
+            Extent extent;
+            synchronized (this) {
+                extent = extents.get(key);
+            }
+            if (extent == null) {
+                return null;
+            }
+            byte[] data = new byte[extent.length];
+            ByteBuffer dst = ByteBuffer.wrap(data);
+            try {
+                while (dst.hasRemaining()
+                        && extent.segment.channel.read(dst, extent.offset + dst.position()) != -1) {
+                    // Keep reading until the version is complete
+                }
+            } catch (ClosedChannelException e) {
+                // The segment was compacted, look the version up again
+                continue;
+            }
+            synchronized (this) {
+                if (extents.get(key) != extent) {
+                    // Moved or replaced while reading, read it again
+                    continue;
+                }
+            }
+            if (dst.hasRemaining()) {
+                throw new IOException("Segment truncated: " + extent.segment.file);
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Drop a packed version, compacting its segment if it became mostly
+     * dead space.
+     *
+     * @param key key of the version
+     */
+    public synchronized void remove(Object key) {
+        Extent extent = extents.remove(key);
+        if (extent == null) {
+            return;
+        }
+        Segment segment = extent.segment;
+        segment.keys.remove(key);
+        segment.live -= extent.length;
+        deadBytes += extent.length;
+        if (segment == active) {
+            if (segment.live == 0) {
+                // Nothing live in it, write over it from the start
+                deadBytes -= segment.size;
+                segment.size = 0;
+                try {
+                    segment.channel.truncate(0);
+                } catch (IOException e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+            return;
+        }
+        if (segment.live < segment.size * COMPACT_LIVE_RATIO) {
+            compact(segment);
+        }
+    }
+
+    /**
+     * Compact every segment holding dead space, the active one included.
+     *
+     * @return bytes reclaimed
+     */
+    public synchronized long compactAll() {
+        long before = deadBytes;
+        Set<Segment> segments = new HashSet<>();
+        for (Extent extent : extents.values()) {
+            segments.add(extent.segment);
+        }
+        if (active != null) {
+            segments.add(active);
+        }
+        // Compacted versions go to a fresh segment
+        active = null;
+        for (Segment segment : segments) {
+            if (segment.live < segment.size || segment.size == 0) {
+                compact(segment);
+            } else {
+                active = segment;
+            }
+        }
+        return before - deadBytes;
+    }
+
+    /**
+     * @return bytes of all segments no longer holding a live version
+     */
+    public synchronized long getDeadBytes() {
+        return deadBytes;
+    }
+
+    /**
+     * Move the live versions of a sealed segment to the active one, then
+     * delete the segment.
+     */
+    private void compact(Segment segment) {
+        long moved = 0;
+        try {
+            for (Object key : new HashSet<>(segment.keys)) {
+                byte[] data = read(key);
+                extents.remove(key);
+                append(key, data);
+                moved += data.length;
+            }
+        } catch (IOException e) {
+            // The segment is kept, its versions stay readable where they are
+            e.printStackTrace(System.err);
+            return;
+        }
+        compactedBytes += segment.size - moved;
+        deadBytes -= segment.size - moved;
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+        segment.file.delete();
+        System.err.println("[ Compacted segment "
+                + segment.file.getName()
+                + ": moved "
+                + moved
+                + " bytes, reclaimed "
+                + (segment.size - moved)
+                + " ]");
+    }
+
+    /**
+     * @return true if the version is packed
+     */
+    public synchronized boolean contains(Object key) {
+        return extents.containsKey(key);
+    }
+
+    /**
+     * @return length of a packed version, or -1 if it is not packed
+     */
+    public synchronized long length(Object key) {
+        Extent extent = extents.get(key);
+        return extent == null ? -1 : extent.length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return extents.size() + " packed versions, " + compactedBytes + " bytes compacted";
+    }
+}
@@ -1,30 +1,124 @@
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.rmi.AlreadyBoundException;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.RMISocketFactory;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
 public class Server extends UnicastRemoteObject implements RemoteFileHandler {
 
     private static final int ARG_LEN = 2;
-    private static String root;
     /**
-     * hash map between absolute path on server and an object lock
+     * Upper bound of children returned by a single directory stat
      */
-    private final Map<String, Object> masterCopysMap;
+    private static final int MAX_DIR_ENTRIES = 4096;
+    /**
+     * Upper bound of paths whose attributes are kept in memory
+     */
+    private static final int META_CACHE_CAPACITY = 100000;
+    /**
+     * Bytes of file chunks kept off-heap for repeated getFile calls
+     */
+    private static final long CHUNK_CACHE_CAPACITY = 256L * 1024 * 1024;
+    /**
+     * Larger chunk requests bypass the chunk cache
+     */
+    private static final int CHUNK_CACHE_MAX_CHUNK = 4 * 1024 * 1024;
+    /**
+     * Directory under root where new versions are staged before publishing
+     */
+    private static final String STAGING_DIR = ".staging";
+    /**
+     * How long an old version stays readable after its last chunk read, and
+     * how long an idle upload is kept
+     */
+    private static final long SNAPSHOT_LEASE_MS = 60000;
+    /**
+     * Snapshots kept open at most; the least recently read ones no read has
+     * pinned are closed before their lease runs out
+     */
+    private static final int SNAPSHOT_MAX_OPEN = 256;
+    /**
+     * Number of recent version events a primary keeps for its replicas
+     */
+    private static final int VERSION_LOG_CAPACITY = 100000;
+    /**
+     * Locks shared by all paths, readers and writers of a path hold the one
+     * its hash maps to
+     */
+    private static final int LOCK_STRIPES = 1024;
+    /**
+     * Root directory of this server's file storage
+     */
+    private final String root;
+    /**
+     * Reader-writer locks of absolute paths on server, striped
+     */
+    private final PathLocks pathLocks;
     /**
      * hash map between absolute path on server and version number
      */
     private final Map<String, Long> versionMap;
+    /**
+     * Maps absolute path to the write id of the migration claiming it
+     */
+    private final Map<String, Long> migrations;
+    /**
+     * Bumped on every mutation, lets proxies drop their negative leases
+     */
+    private final AtomicLong epoch;
+    /**
+     * Highest version issued to any path, so a file recreated after an
+     * unlink starts above every version it had before and a (path, version)
+     * pair never names two different contents
+     */
+    private final AtomicLong versionClock;
+    /**
+     * Start time of this server process, sent along with the epoch so
+     * proxies notice a restart that set the epoch back to 0
+     */
+    private final long incarnation;
+    /**
+     * Cached file attributes, so metadata RPCs skip the stat calls
+     */
+    private final ServerMetaCache metaCache;
+    /**
+     * Recently served chunks, so refetch storms read the disk once
+     */
+    private final ChunkCache chunkCache;
+    /**
+     * Immutable version snapshots for readers, staged versions for writers
+     */
+    private final VersionStore versionStore;
+    /**
+     * Versions published by this server, polled by replicas
+     */
+    private final VersionLog versionLog;
+    /**
+     * Pulls versions from the primary, null unless this is a replica
+     */
+    private ReplicaFollower follower;
+    /**
+     * Serves chunk reads over multiple TCP streams, null until started
+     */
+    private BulkServer bulkServer;
 
     /**
      * Creates and exports a new UnicastRemoteObject object using the
@@ -41,78 +135,438 @@ public class Server extends UnicastRemoteObject implements RemoteFileHandler {
      */
     protected Server(int port, String root) throws RemoteException {
         super(port);
-        Server.root = root;
-        masterCopysMap = new ConcurrentHashMap<>();
+        this.root = root;
+        pathLocks = new PathLocks(LOCK_STRIPES);
         versionMap = new ConcurrentHashMap<>();
+        migrations = new ConcurrentHashMap<>();
+        epoch = new AtomicLong();
+        versionClock = new AtomicLong();
+        incarnation = System.currentTimeMillis();
+        chunkCache = new ChunkCache(CHUNK_CACHE_CAPACITY, CHUNK_CACHE_MAX_CHUNK);
+        metaCache = new ServerMetaCache(META_CACHE_CAPACITY,
+                new ServerMetaCache.ChangeListener() {
+                    @Override
+                    public void fileChanged(String absPath) {
+                        chunkCache.invalidate(absPath);
+                    }
+
+                    @Override
+                    public void dirChanged(String absDir) {
+                        chunkCache.invalidateUnder(absDir);
+                    }
+                });
+        try {
+            versionStore = new VersionStore(root + STAGING_DIR,
+                    SNAPSHOT_LEASE_MS,
+                    SNAPSHOT_MAX_OPEN);
+        } catch (IOException e) {
+            throw new RemoteException("Cannot create staging directory", e);
+        }
+        versionLog = new VersionLog(VERSION_LOG_CAPACITY);
+    }
+
+    /**
+     * Turn this server into a read-only replica of a primary. A replica only
+     * serves the versions it has copied from the primary, and rejects
+     * mutations from proxies.
+     *
+     * @param primaryUrl RMI url of the primary server
+     */
+    void followPrimary(String primaryUrl) {
+        follower = new ReplicaFollower(this, primaryUrl);
+        follower.start();
+    }
+
+    /**
+     * Serve chunk reads over plain TCP streams as well as RMI.
+     *
+     * @param port port to listen on, 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    void startBulk(int port) throws IOException {
+        bulkServer = new BulkServer(this, port);
+        bulkServer.start();
+    }
+
+    /**
+     * Get the port proxies read chunks from over multiple streams.
+     *
+     * @return bulk port, or 0 if bulk transfers are not served
+     */
+    @Override
+    public int getBulkPort() {
+        return bulkServer == null ? 0 : bulkServer.getPort();
     }
 
     /**
-     * Read <code>nbytes</code> of the file, starting from a give offset, reader can read
-     * at any time, not synchronized
+     * Read <code>nbytes</code> of a given version of the file, starting from a
+     * give offset. Reads go to an immutable snapshot of that version, so a
+     * download split over several calls never mixes two versions, and readers
+     * never take the writer lock while reading. Chunks are served from the
+     * chunk cache when the same (path, version, offset) was read before.
      *
-     * @param path   relative path pointing to the file
-     * @param nbytes denotes how many bytes to read from file
-     * @param offset read will be starting from this offset
-     * @return nbytes of raw data read form file
+     * @param path    relative path pointing to the file
+     * @param version version to read, as returned by getFileMeta
+     * @param nbytes  denotes how many bytes to read from file
+     * @param offset  read will be starting from this offset
+     * @return nbytes of raw data read form file, or null if the version is no
+     * longer available and the caller must start over with fresh meta data
      * @throws RemoteException if failed to export object
      */
     @Override
     public RawFile getFile(String path,
+                           long version,
                            int nbytes,
                            long offset) throws RemoteException {
+        if (isStaging(path)) {
+            return null;
+        }
         String absPath = root + path;
-        File file = new File(absPath);
-        byte[] buf = new byte[nbytes];
-        masterCopysMap.putIfAbsent(absPath, new Object());
         try {
-            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
-            randomAccessFile.seek(offset);
-            randomAccessFile.read(buf);
+            byte[] buf = chunkCache.get(absPath,
+                    version,
+                    offset,
+                    nbytes,
+                    direct -> readSnapshot(absPath, version, nbytes, offset, direct),
+                    () -> Long.valueOf(version).equals(versionMap.get(absPath)));
+            return new RawFile(buf);
+        } catch (NoSuchFileException e) {
+            System.err.println("[ Version " + version + " of " + absPath + " is gone ]");
+            if (follower != null) {
+                follower.requestFill(path);
+            }
+            return null;
         } catch (IOException e) {
             e.printStackTrace();
+            return new RawFile(new byte[nbytes]);
         }
-        /* If it is the first client request on this file */
-        versionMap.putIfAbsent(absPath, 0L);
-        return new RawFile(buf);
     }
 
     /**
-     * Write bytes on to server file.
+     * Read a chunk from the snapshot of a version, pinning the master copy
+     * as a snapshot if the version is the current one.
      *
-     * @param path   relative path to file on server
-     * @param buf    buffer of bytes of content to write
-     * @param offset the offset position, measured in bytes from the beginning
-     *               of the file
-     * @return new version number
-     * @throws RemoteException on RMI failure
+     * @param absPath absolute path on server
+     * @param version version to read
+     * @param nbytes  length of the chunk
+     * @param offset  offset of the chunk
+     * @param direct  true to read into a direct buffer
+     * @return buffer holding the chunk
+     * @throws NoSuchFileException if the version is no longer available
+     * @throws IOException         if the snapshot cannot be read
+     */
+    private ByteBuffer readSnapshot(String absPath,
+                                    long version,
+                                    int nbytes,
+                                    long offset,
+                                    boolean direct) throws IOException {
+        VersionStore.Snapshot snapshot = versionStore.acquire(absPath, version);
+        if (snapshot == null) {
+            // Shared with other readers, excluded from writers of the path
+            StampedLock lock = pathLocks.get(absPath);
+            long stamp = lock.readLock();
+            try {
+                /* If it is the first client request on this file */
+                Long currVersion = follower != null
+                        ? versionMap.get(absPath)
+                        : versionMap.computeIfAbsent(absPath, k -> 0L);
+                if (currVersion == null || currVersion != version) {
+                    throw new NoSuchFileException(absPath);
+                }
+                snapshot = versionStore.open(absPath, version);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        try {
+            return snapshot.read(nbytes, offset, direct);
+        } finally {
+            versionStore.release(snapshot);
+        }
+    }
+
+    /**
+     * Start writing a new version of a file. The version is staged aside and
+     * only becomes visible on commitWrite.
+     *
+     * @param path relative path to file on server
+     * @return write id for writeFile and commitWrite
+     * @throws IOException if the staging file cannot be created
      */
     @Override
-    public long writeFile(String path,
-                          byte[] buf,
-                          long offset) throws RemoteException {
+    public long beginWrite(String path) throws IOException {
+        checkWritable();
+        checkPath(path);
         String absPath = root + path;
-        File file = new File(absPath);
-        long newVersion = -1;
         System.err.println("[ Writing to file : " + absPath + " ]");
+        return versionStore.beginWrite(absPath);
+    }
+
+    /**
+     * Write bytes into a staged version.
+     *
+     * @param writeId write id from beginWrite
+     * @param buf     buffer of bytes of content to write
+     * @param offset  the offset position, measured in bytes from the beginning
+     *                of the file
+     * @throws IOException if the write id is unknown or on RMI failure
+     */
+    @Override
+    public void writeFile(long writeId,
+                          byte[] buf,
+                          long offset) throws IOException {
+        versionStore.write(writeId, buf, offset);
+    }
+
+    /**
+     * Publish a staged version by atomically renaming it over the master
+     * copy. Readers of the previous version keep reading their snapshot.
+     *
+     * @param writeId    write id from beginWrite
+     * @param minVersion lowest acceptable new version, so versions never go
+     *                   backwards for a proxy that has seen a higher one
+     * @return new version number
+     * @throws IOException if the write id is unknown or the rename fails
+     */
+    @Override
+    public long commitWrite(long writeId, long minVersion) throws IOException {
+        checkWritable();
+        VersionStore.Upload upload = versionStore.finishWrite(writeId);
+        String absPath = upload.getAbsPath();
+        long newVersion;
         // Mutual exclusion: one writer at a time
-        masterCopysMap.putIfAbsent(absPath, new Object());
-        synchronized (masterCopysMap.get(absPath)) {
-            try {
-                RandomAccessFile randomAccessFile =
-                        new RandomAccessFile(file, "rw");
-                randomAccessFile.seek(offset);
-                randomAccessFile.write(buf);
-                // Update version number
-                newVersion = versionMap.getOrDefault(absPath, -1L) + 1;
-                versionMap.put(absPath, newVersion);
-                System.err.println("[ Remote Ver.: " + newVersion + " ]");
-            } catch (IOException e) {
-                e.printStackTrace();
+        StampedLock lock = pathLocks.get(absPath);
+        long stamp = lock.writeLock();
+        try {
+            // Update version number
+            newVersion = Math.max(versionMap.getOrDefault(absPath, -1L) + 1, minVersion);
+            long length = publish(upload, newVersion);
+            versionLog.append(absPath.substring(root.length()), newVersion, length, true);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        System.err.println("[ Remote Ver.: " + newVersion + " ]");
+        return newVersion;
+    }
+
+    /**
+     * Claim a file moving to this server from its previous owner, and start
+     * staging its copy. One migration of a path runs at a time, so proxies
+     * racing to move the same file copy it once. A claim is given up when
+     * its upload is dropped as abandoned.
+     *
+     * @param path relative path to file on server
+     * @return write id for writeFile and commitMigration, or -1 if the file
+     * is already here or another migration of it is running
+     * @throws IOException if the staging file cannot be created
+     */
+    @Override
+    public long beginMigration(String path) throws IOException {
+        checkWritable();
+        checkPath(path);
+        String absPath = root + path;
+        StampedLock lock = pathLocks.get(absPath);
+        long stamp = lock.writeLock();
+        try {
+            Long claim = migrations.get(absPath);
+            if (new File(absPath).exists() || (claim != null && versionStore.isActive(claim))) {
+                return -1;
+            }
+            long writeId = versionStore.beginWrite(absPath);
+            migrations.put(absPath, writeId);
+            System.err.println("[ Migrating in: " + absPath + " ]");
+            return writeId;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Publish a migrated file and release its claim. If the file was created
+     * here in the meantime, that file wins and the copy is dropped.
+     *
+     * @param writeId    write id from beginMigration
+     * @param minVersion lowest acceptable new version
+     * @return new version number, or -1 if the copy was dropped
+     * @throws IOException if the claim was lost or the rename fails
+     */
+    @Override
+    public long commitMigration(long writeId, long minVersion) throws IOException {
+        checkWritable();
+        VersionStore.Upload upload = versionStore.finishWrite(writeId);
+        String absPath = upload.getAbsPath();
+        long newVersion;
+        StampedLock lock = pathLocks.get(absPath);
+        long stamp = lock.writeLock();
+        try {
+            if (!migrations.remove(absPath, writeId)) {
+                Files.deleteIfExists(upload.getStaging());
+                throw new IOException("Migration claim of " + absPath + " was lost");
+            }
+            if (new File(absPath).exists()) {
+                Files.deleteIfExists(upload.getStaging());
+                return -1;
             }
+            newVersion = Math.max(versionMap.getOrDefault(absPath, -1L) + 1, minVersion);
+            long length = publish(upload, newVersion);
+            versionLog.append(absPath.substring(root.length()), newVersion, length, true);
+        } finally {
+            lock.unlockWrite(stamp);
         }
+        System.err.println("[ Migrated " + absPath + " version: " + newVersion + " ]");
         return newVersion;
     }
 
+    /**
+     * Drop a staged version whose upload failed, instead of leaving it to
+     * expire.
+     *
+     * @param writeId write id from beginWrite
+     */
+    @Override
+    public void abortWrite(long writeId) {
+        versionStore.abort(writeId);
+    }
+
+    /**
+     * Drop a migration that failed and release its claim.
+     *
+     * @param writeId write id from beginMigration
+     */
+    @Override
+    public void abortMigration(long writeId) {
+        versionStore.abort(writeId);
+        migrations.values().remove(writeId);
+    }
+
+    /**
+     * Rename a staged version over the master copy. Caller holds the path
+     * lock.
+     *
+     * @param upload  finished upload
+     * @param version version number of the staged file
+     * @return length of the new version
+     * @throws IOException if the rename fails
+     */
+    private long publish(VersionStore.Upload upload, long version) throws IOException {
+        String absPath = upload.getAbsPath();
+        Files.createDirectories(Paths.get(absPath).getParent());
+        Files.move(upload.getStaging(),
+                Paths.get(absPath),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        versionMap.put(absPath, version);
+        versionClock.accumulateAndGet(version, Math::max);
+        metaCache.invalidate(absPath);
+        chunkCache.invalidate(absPath);
+        epoch.incrementAndGet();
+        return Files.size(Paths.get(absPath));
+    }
+
+    /**
+     * Stage a version copied from the primary, called by the replica
+     * follower.
+     *
+     * @param path relative path on server
+     * @return write id for writeFile and applyVersion
+     * @throws IOException if the staging file cannot be created
+     */
+    long beginReplicaWrite(String path) throws IOException {
+        return versionStore.beginWrite(root + path);
+    }
+
+    /**
+     * Publish a version copied from the primary under the primary's version
+     * number, unless a newer one was already applied.
+     *
+     * @param writeId write id from beginReplicaWrite
+     * @param version version number on the primary
+     * @throws IOException if the rename fails
+     */
+    void applyVersion(long writeId, long version) throws IOException {
+        VersionStore.Upload upload = versionStore.finishWrite(writeId);
+        String absPath = upload.getAbsPath();
+        StampedLock lock = pathLocks.get(absPath);
+        long stamp = lock.writeLock();
+        try {
+            if (versionMap.getOrDefault(absPath, -1L) >= version) {
+                Files.deleteIfExists(upload.getStaging());
+                return;
+            }
+            publish(upload, version);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        System.err.println("[ Replicated " + absPath + " version: " + version + " ]");
+    }
+
+    /**
+     * Drop a staged version copied from the primary.
+     *
+     * @param writeId write id from beginReplicaWrite
+     */
+    void abortReplicaWrite(long writeId) {
+        versionStore.abort(writeId);
+    }
+
+    /**
+     * Get the version this replica holds of a file.
+     *
+     * @param path relative path on server
+     * @return version, or -1 if none was copied yet
+     */
+    long localVersion(String path) {
+        return versionMap.getOrDefault(root + path, -1L);
+    }
+
+    /**
+     * Forget every copied version after the replica lost track of the
+     * primary's events. Files are copied again on their next read.
+     */
+    void resetVersions() {
+        System.err.println("[ Lost track of primary, resetting versions ]");
+        versionMap.clear();
+        chunkCache.invalidateUnder(root);
+        epoch.incrementAndGet();
+    }
+
+    /**
+     * Get the versions published after a sequence number, polled by
+     * replicas.
+     *
+     * @param afterSeq sequence number of the last event applied, 0 for none
+     * @return events in order, or null if the replica has to resynchronize
+     * @throws RemoteException if RMI call fails
+     */
+    @Override
+    public List<VersionEvent> getVersionEvents(long afterSeq) throws RemoteException {
+        return versionLog.since(afterSeq);
+    }
+
+    private void checkWritable() throws IOException {
+        if (follower != null) {
+            throw new IOException("Read-only replica");
+        }
+    }
+
+    /**
+     * @throws NoSuchFileException if the path is in the staging directory,
+     *                             which clients never see
+     */
+    private static void checkPath(String path) throws NoSuchFileException {
+        if (isStaging(path)) {
+            throw new NoSuchFileException(path);
+        }
+    }
+
+    /**
+     * @return true if the path is the staging directory or inside it
+     */
+    private static boolean isStaging(String path) {
+        Path relPath = Paths.get(path).normalize();
+        return relPath.getNameCount() > 0 && relPath.getName(0).toString().equals(STAGING_DIR);
+    }
+
     /**
      * Create an empty file in server, called when proxy open for create and cannot find the
      * file on server
@@ -124,13 +578,28 @@ public class Server extends UnicastRemoteObject implements RemoteFileHandler {
      */
     @Override
     public boolean creatFile(String path) throws IOException {
+        checkWritable();
+        checkPath(path);
         String absPath = root + path;
         System.err.println("[ Creating file : " + absPath + " ]");
         File file = new File(absPath);
         // Mutual exclusion: one writer at a time
-        masterCopysMap.putIfAbsent(absPath, new Object());
-        synchronized (masterCopysMap.get(absPath)) {
-            return file.createNewFile();
+        StampedLock lock = pathLocks.get(absPath);
+        long stamp = lock.writeLock();
+        try {
+            // Parent directories may live on another shard
+            Files.createDirectories(file.toPath().getParent());
+            boolean created = file.createNewFile();
+            if (created) {
+                long version = versionClock.incrementAndGet();
+                versionMap.put(absPath, version);
+                metaCache.put(absPath, new ServerMetaCache.Attrs(true, false, 0));
+                epoch.incrementAndGet();
+                versionLog.append(path, version, 0, true);
+            }
+            return created;
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
@@ -143,14 +612,93 @@ public class Server extends UnicastRemoteObject implements RemoteFileHandler {
      */
     @Override
     public FileMeta getFileMeta(String path) throws RemoteException {
+//        System.err.println("[ Getting metadata : " + root + path  + " ]");
+        // Read epoch before probing, so a racing mutation shows up as newer
+        return statFile(path, epoch.get());
+    }
+
+    /**
+     * Collect meta data of several files in one call.
+     *
+     * @param paths relative file paths on server
+     * @return file meta data, in the same order as <code>paths</code>
+     * @throws RemoteException if RMI call fails
+     */
+    @Override
+    public List<FileMeta> getFileMetaBatch(List<String> paths) throws RemoteException {
+        long currEpoch = epoch.get();
+        List<FileMeta> fileMetas = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            fileMetas.add(statFile(path, currEpoch));
+        }
+        return fileMetas;
+    }
+
+    /**
+     * Collect meta data of the children of a directory, at most
+     * {@link #MAX_DIR_ENTRIES} of them.
+     *
+     * @param path relative directory path on server
+     * @return map from relative child path to its meta data, empty if the
+     * path is not a directory
+     * @throws RemoteException if RMI call fails
+     */
+    @Override
+    public Map<String, FileMeta> getDirectoryMeta(String path) throws RemoteException {
+        long currEpoch = epoch.get();
+        Map<String, FileMeta> children = new HashMap<>();
+        if (isStaging(path)) {
+            return children;
+        }
+        Path relDir = Paths.get(path);
+        try (DirectoryStream<Path> stream =
+                     Files.newDirectoryStream(Paths.get(root + path))) {
+            for (Path child : stream) {
+                if (children.size() >= MAX_DIR_ENTRIES) {
+                    break;
+                }
+                String childPath = relDir.resolve(child.getFileName()).toString();
+                if (isStaging(childPath)) {
+                    continue;
+                }
+                children.put(childPath, statFile(childPath, currEpoch));
+            }
+        } catch (IOException e) {
+            System.err.println("[ Cannot list directory " + root + path + " ]");
+        }
+        return children;
+    }
+
+    /**
+     * Build file meta data from the cached attributes, or a single attribute
+     * read on a cache miss.
+     *
+     * @param path      relative file path on server
+     * @param currEpoch epoch read before the probe
+     * @return file meta data
+     */
+    private FileMeta statFile(String path, long currEpoch) {
         String absPath = root + path;
-//        System.err.println("[ Getting metadata : " + absPath  + " ]");
-        File file = new File(absPath);
         FileMeta fileMeta = new FileMeta();
-        fileMeta.setFileExists(file.exists());
-        fileMeta.setIsDirectory(file.isDirectory());
-        fileMeta.setLength(file.length());
-        fileMeta.setVersion(getFileVersion(path));
+        fileMeta.setEpoch(currEpoch);
+        fileMeta.setIncarnation(incarnation);
+        if (isStaging(path)) {
+            return fileMeta;
+        }
+        try {
+            ServerMetaCache.Attrs attrs = metaCache.stat(absPath);
+            fileMeta.setFileExists(attrs.exists());
+            if (attrs.exists()) {
+                fileMeta.setIsDirectory(attrs.isDirectory());
+                fileMeta.setLength(attrs.getLength());
+                fileMeta.setVersion(follower != null
+                        ? versionMap.getOrDefault(absPath, -1L)
+                        : versionMap.computeIfAbsent(absPath, k -> 0L));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            fileMeta.setBadFile(true);
+        }
         return fileMeta;
     }
 
@@ -163,13 +711,7 @@ public class Server extends UnicastRemoteObject implements RemoteFileHandler {
      */
     @Override
     public long getFileVersion(String path) throws RemoteException {
-        String absPath = root + path;
-        if (!Files.exists(Paths.get(absPath))) {
-            System.err.println("[ File " + absPath + " does not exist. ]");
-            return 0L;
-        }
-        versionMap.putIfAbsent(absPath, 0L);
-        return versionMap.get(absPath);
+        return statFile(path, epoch.get()).getVersion();
     }
 
     /**
@@ -179,14 +721,35 @@ public class Server extends UnicastRemoteObject implements RemoteFileHandler {
      * @throws IOException if delete operation fails
      */
     public void unlink(String path) throws IOException {
+        checkWritable();
+        checkPath(path);
+        removeFile(path);
+        versionLog.append(path, -1, 0, false);
+    }
+
+    /**
+     * Delete a file, on the primary through unlink, on a replica when the
+     * primary's unlink is applied.
+     *
+     * @param path relative path to file
+     * @throws IOException if delete operation fails
+     */
+    void removeFile(String path) throws IOException {
         String absPath = root + path;
         File file = new File(absPath);
-        masterCopysMap.putIfAbsent(absPath, new Object());
-        synchronized (masterCopysMap.get(absPath)) {
+        StampedLock lock = pathLocks.get(absPath);
+        long stamp = lock.writeLock();
+        try {
             if (file.exists()) {
                 Files.delete(file.toPath());
             }
             versionMap.remove(absPath);
+            versionStore.retire(absPath);
+            metaCache.put(absPath, ServerMetaCache.Attrs.MISSING);
+            chunkCache.invalidate(absPath);
+            epoch.incrementAndGet();
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
@@ -198,7 +761,7 @@ public class Server extends UnicastRemoteObject implements RemoteFileHandler {
             return;
         }
         int port = Integer.parseInt(args[0]);
-        root = args[1] + "/";
+        String root = args[1] + "/";
         System.err.println("[ Port: " + port + " ] [ Root: " + root + " ]");
         try {
             LocateRegistry.createRegistry(port);
@@ -206,6 +769,18 @@ public class Server extends UnicastRemoteObject implements RemoteFileHandler {
             e.printStackTrace();
         }
         Server server = new Server(port, root);
+        // Optional third argument makes this a read-only replica
+        if (args.length > ARG_LEN) {
+            String primary = args[ARG_LEN];
+            server.followPrimary("//" + primary + "/server");
+        }
+        // Bulk chunk transfers on bulkport15440, any free port by default
+        String bulkPort = System.getenv("bulkport15440");
+        try {
+            server.startBulk(bulkPort == null ? 0 : Integer.parseInt(bulkPort));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         Naming.bind("//localhost:" + port + "/server", server);
 
         System.err.println("[ Server starts ... ]");
@@ -0,0 +1,281 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of file attributes on the server, keyed by
+ * absolute path, so metadata RPCs become a hash lookup instead of stat
+ * calls.
+ *
+ * <p>Entries are updated by the server's own mutations, and by a
+ * {@link WatchService} on every directory that holds a cached entry, to catch
+ * out-of-band changes. An entry is only cached when its parent directory is
+ * watched. A generation counter, bumped on every invalidation, keeps a probe
+ * that raced with a change from caching what it saw. Out-of-band changes are
+ * also passed on to a listener, so other caches keyed by path can follow.
+ */
+public class ServerMetaCache {
+    /**
+     * Lookups between two hit rate reports
+     */
+    private static final long STATS_INTERVAL = 10000;
+    private final int capacity;
+    /**
+     * Maps normalized absolute path to attributes, in LRU order
+     */
+    private final LinkedHashMap<String, Attrs> attrsMap;
+    /**
+     * Maps watched directory to its watch key
+     */
+    private final Map<Path, WatchKey> watchedDirs;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    /**
+     * Told about every out-of-band change
+     */
+    private final ChangeListener changeListener;
+    private long generation;
+    private WatchService watchService;
+
+    public ServerMetaCache(int capacity, ChangeListener changeListener) {
+        this.capacity = capacity;
+        this.changeListener = changeListener;
+        this.attrsMap = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Attrs> eldest) {
+                return size() > ServerMetaCache.this.capacity;
+            }
+        };
+        this.watchedDirs = new ConcurrentHashMap<>();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            Thread watcher = new Thread(this::processEvents, "meta-cache-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException e) {
+            // Without out-of-band invalidation nothing can be cached safely
+            System.err.println("[ Meta cache disabled: no watch service ]");
+            this.watchService = null;
+        }
+    }
+
+    /**
+     * Get the attributes of a file, from cache if present, otherwise with a
+     * single attribute read.
+     *
+     * @param absPath absolute path on server
+     * @return file attributes, {@link Attrs#MISSING} if the file does not
+     * exist
+     * @throws IOException if the attributes cannot be read
+     */
+    public Attrs stat(String absPath) throws IOException {
+        Path path = Paths.get(absPath).normalize();
+        String key = path.toString();
+        Attrs attrs;
+        synchronized (this) {
+            attrs = attrsMap.get(key);
+        }
+        if (attrs != null) {
+            hits.incrementAndGet();
+            reportStats();
+            return attrs;
+        }
+        misses.incrementAndGet();
+        reportStats();
+
+        // Watch before probing, so a change after the probe is not missed
+        boolean watched = watch(path.getParent());
+        long probeGeneration;
+        synchronized (this) {
+            probeGeneration = generation;
+        }
+        try {
+            BasicFileAttributes basicAttrs =
+                    Files.readAttributes(path, BasicFileAttributes.class);
+            attrs = new Attrs(true, basicAttrs.isDirectory(), basicAttrs.size());
+        } catch (NoSuchFileException e) {
+            attrs = Attrs.MISSING;
+        }
+        if (watched) {
+            synchronized (this) {
+                if (generation == probeGeneration) {
+                    attrsMap.put(key, attrs);
+                }
+            }
+        }
+        return attrs;
+    }
+
+    /**
+     * Record attributes known from a mutation made by the server itself.
+     *
+     * @param absPath absolute path on server
+     * @param attrs   attributes after the mutation
+     */
+    public void put(String absPath, Attrs attrs) {
+        Path path = Paths.get(absPath).normalize();
+        boolean watched = watch(path.getParent());
+        synchronized (this) {
+            generation++;
+            if (watched) {
+                attrsMap.put(path.toString(), attrs);
+            } else {
+                attrsMap.remove(path.toString());
+            }
+        }
+    }
+
+    /**
+     * Drop the cached attributes of a file.
+     *
+     * @param absPath absolute path on server
+     */
+    public void invalidate(String absPath) {
+        String key = Paths.get(absPath).normalize().toString();
+        synchronized (this) {
+            generation++;
+            attrsMap.remove(key);
+        }
+    }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    private void reportStats() {
+        long total = hits.get() + misses.get();
+        if (total % STATS_INTERVAL == 0) {
+            System.err.printf("[ Meta cache hit rate: %.1f%% of %d lookups, %d entries ]%n",
+                    getHitRate() * 100,
+                    total,
+                    size());
+        }
+    }
+
+    public synchronized int size() {
+        return attrsMap.size();
+    }
+
+    /**
+     * Make sure a directory is watched for changes of its children.
+     *
+     * @param dir directory to watch
+     * @return true if the directory is watched
+     */
+    private boolean watch(Path dir) {
+        if (watchService == null || dir == null) {
+            return false;
+        }
+        if (watchedDirs.containsKey(dir)) {
+            return true;
+        }
+        // Bound the number of inotify watches by the cache capacity
+        if (watchedDirs.size() >= capacity) {
+            return false;
+        }
+        try {
+            WatchKey key = dir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirs.put(dir, key);
+            return true;
+        } catch (IOException | ClosedWatchServiceException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Watcher thread body, invalidates entries changed behind the server's
+     * back.
+     */
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events were lost, nothing under the directory is known
+                    synchronized (this) {
+                        generation++;
+                        attrsMap.clear();
+                    }
+                    changeListener.dirChanged(dir.toString());
+                    continue;
+                }
+                String changed = dir.resolve((Path) event.context()).toString();
+                invalidate(changed);
+                changeListener.fileChanged(changed);
+            }
+            if (!key.reset()) {
+                // Directory is gone, so are all entries under it
+                watchedDirs.remove(dir);
+                String prefix = dir.toString() + "/";
+                synchronized (this) {
+                    generation++;
+                    attrsMap.keySet().removeIf(p -> p.startsWith(prefix));
+                }
+                changeListener.dirChanged(dir.toString());
+            }
+        }
+    }
+
+    /**
+     * Receives out-of-band changes, with normalized absolute paths.
+     */
+    public interface ChangeListener {
+        void fileChanged(String absPath);
+
+        void dirChanged(String absDir);
+    }
+
+    /**
+     * Immutable snapshot of the attributes of one file.
+     */
+    public static class Attrs {
+        public static final Attrs MISSING = new Attrs(false, false, 0);
+        private final boolean exists;
+        private final boolean isDirectory;
+        private final long length;
+
+        public Attrs(boolean exists, boolean isDirectory, long length) {
+            this.exists = exists;
+            this.isDirectory = isDirectory;
+            this.length = length;
+        }
+
+        public boolean exists() {
+            return exists;
+        }
+
+        public boolean isDirectory() {
+            return isDirectory;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
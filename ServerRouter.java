@@ -0,0 +1,482 @@
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes each path to one of several servers by consistent hashing with
+ * virtual nodes, so every proxy given the same endpoints agrees on the owner
+ * of a path, and adding a server only moves about 1/n of the paths.
+ *
+ * <p>When an endpoint is added to a running proxy, the ring before it is
+ * kept, and so is every earlier one, since there is no rebalance that moves
+ * all files at once. A path missing on its owner is looked up on its owners
+ * in the earlier rings, newest first, and migrated lazily on first access.
+ * The owner claims a migration, so proxies racing to move the same file
+ * copy it once and the others wait for it. The endpoints a proxy starts
+ * with have no earlier ring.
+ *
+ * <p>Each endpoint is a primary server with optional read-only replicas.
+ * Metadata and writes go to the primary. Chunk reads go to a replica picked
+ * by the power of two choices on its smoothed latency, and fall back to the
+ * primary when the replica does not hold the version yet.
+ *
+ * <p>Each endpoint also has an asynchronous client, so callers can keep many
+ * calls outstanding, within a limit per server. Chunks read from a primary
+ * go over its bulk streams when it serves them, and over RMI otherwise.
+ */
+public class ServerRouter {
+    /**
+     * Weight of the newest sample in a replica's latency average
+     */
+    private static final double EWMA_ALPHA = 0.2;
+    /**
+     * Latency charged to a replica whose call failed
+     */
+    private static final long FAILURE_PENALTY_NANOS = 1_000_000_000L;
+    /**
+     * A replica without a sample for this long is tried again, so one that
+     * was slow or down gets back into rotation
+     */
+    private static final long PROBE_INTERVAL_NANOS = 5_000_000_000L;
+    /**
+     * How long a lookup waits for another proxy migrating the same file
+     */
+    private static final long MIGRATION_WAIT_NANOS = 30_000_000_000L;
+    /**
+     * Pause between checks of a migration run by another proxy
+     */
+    private static final long MIGRATION_POLL_MS = 50;
+    private final int vnodes;
+    /**
+     * Maps hash point to endpoint, never mutated once published
+     */
+    private volatile TreeMap<Long, Endpoint> ring;
+    /**
+     * Rings before each endpoint added after the initial ones, newest first
+     */
+    private volatile List<TreeMap<Long, Endpoint>> previousRings;
+    private final List<Endpoint> endpoints;
+    private final int chunkSize;
+    private final int maxCallsPerServer;
+    private final Executor executor;
+    private final int bulkStreams;
+
+    /**
+     * @param vnodes            virtual nodes per server on the ring
+     * @param chunkSize         bytes per call when migrating a file
+     * @param maxCallsPerServer asynchronous calls in flight per server
+     * @param executor          runs asynchronous calls of all servers
+     * @param bulkStreams       TCP streams per server for chunk reads, 0 to
+     *                          read chunks over RMI only
+     */
+    public ServerRouter(int vnodes,
+                        int chunkSize,
+                        int maxCallsPerServer,
+                        Executor executor,
+                        int bulkStreams) {
+        this.vnodes = vnodes;
+        this.chunkSize = chunkSize;
+        this.maxCallsPerServer = maxCallsPerServer;
+        this.executor = executor;
+        this.bulkStreams = bulkStreams;
+        this.ring = new TreeMap<>();
+        this.previousRings = Collections.emptyList();
+        this.endpoints = new ArrayList<>();
+    }
+
+    /**
+     * Connect to a server and its replicas and add it to the ring. If the
+     * server is already in the ring, only connect to replicas it did not
+     * have yet.
+     *
+     * @param url         RMI url of the primary server
+     * @param replicaUrls RMI urls of its read-only replicas
+     * @param initial     true for the endpoints the proxy starts with, whose
+     *                    paths never lived on another server
+     * @return false if the endpoint was already in the ring
+     * @throws MalformedURLException if a url is malformed
+     * @throws NotBoundException     if no server is bound at a url
+     * @throws RemoteException       if a registry cannot be reached
+     */
+    public synchronized boolean addEndpoint(String url, List<String> replicaUrls, boolean initial)
+            throws MalformedURLException, NotBoundException, RemoteException {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.url.equals(url)) {
+                addReplicas(endpoint, replicaUrls);
+                return false;
+            }
+        }
+        RemoteFileHandler handler = (RemoteFileHandler) Naming.lookup(url);
+        Endpoint endpoint = new Endpoint(url,
+                handler,
+                new AsyncFileHandler(url, handler, maxCallsPerServer, executor));
+        int bulkPort = bulkStreams > 0 ? handler.getBulkPort() : 0;
+        if (bulkPort > 0) {
+            endpoint.bulk = new BulkClient(URI.create("rmi:" + url).getHost(),
+                    bulkPort,
+                    bulkStreams);
+            System.err.println("[ Bulk streams: " + endpoint.bulk + " ]");
+        }
+        addReplicas(endpoint, replicaUrls);
+        endpoints.add(endpoint);
+        TreeMap<Long, Endpoint> newRing = new TreeMap<>(ring);
+        for (int i = 0; i < vnodes; i++) {
+            newRing.put(hash(url + "#" + i), endpoint);
+        }
+        if (!initial && !ring.isEmpty()) {
+            List<TreeMap<Long, Endpoint>> rings = new ArrayList<>();
+            rings.add(ring);
+            rings.addAll(previousRings);
+            previousRings = Collections.unmodifiableList(rings);
+        }
+        ring = newRing;
+        System.err.println("[ Added server: " + url + ", " + endpoints.size() + " in ring ]");
+        return true;
+    }
+
+    private static void addReplicas(Endpoint endpoint, List<String> replicaUrls)
+            throws MalformedURLException, NotBoundException, RemoteException {
+        outer:
+        for (String replicaUrl : replicaUrls) {
+            for (Replica replica : endpoint.replicas) {
+                if (replica.url.equals(replicaUrl)) {
+                    continue outer;
+                }
+            }
+            endpoint.replicas.add(new Replica(replicaUrl,
+                    (RemoteFileHandler) Naming.lookup(replicaUrl)));
+            System.err.println("[ Added replica: " + replicaUrl + " of " + endpoint.url + " ]");
+        }
+    }
+
+    /**
+     * Get the server owning a path.
+     *
+     * @param path relative path on server
+     * @return handler of the owning server
+     */
+    public RemoteFileHandler serverFor(String path) {
+        return endpointFor(ring, path).handler;
+    }
+
+    /**
+     * Get the asynchronous client of the server owning a path.
+     *
+     * @param path relative path on server
+     * @return asynchronous client of the owning server
+     */
+    public AsyncFileHandler asyncFor(String path) {
+        return endpointFor(ring, path).async;
+    }
+
+    /**
+     * Get the url of the server owning a path.
+     *
+     * @param path relative path on server
+     * @return url of the owning server
+     */
+    public String urlFor(String path) {
+        return endpointFor(ring, path).url;
+    }
+
+    public synchronized List<String> getUrls() {
+        List<String> urls = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            urls.add(endpoint.url);
+        }
+        return Collections.unmodifiableList(urls);
+    }
+
+    /**
+     * Read a chunk of a version from a replica of the owner of a path,
+     * falling back to the owner itself if the replica lags behind or fails.
+     *
+     * @param path    relative path on server
+     * @param version version to read
+     * @param nbytes  length of the chunk
+     * @param offset  offset of the chunk
+     * @return chunk read, or null if the version is gone on the owner
+     * @throws RemoteException if the call to the owner fails
+     */
+    public RawFile getFile(String path, long version, int nbytes, long offset)
+            throws RemoteException {
+        Endpoint owner = endpointFor(ring, path);
+        Replica replica = pickReplica(owner.replicas);
+        if (replica != null) {
+            replica.inFlight.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                RawFile rawFile = replica.handler.getFile(path, version, nbytes, offset);
+                if (rawFile != null) {
+                    replica.sample(System.nanoTime() - start);
+                    return rawFile;
+                }
+            } catch (RemoteException e) {
+                System.err.println("[ Replica " + replica.url + " failed: " + e.getMessage() + " ]");
+                replica.sample(FAILURE_PENALTY_NANOS);
+            } finally {
+                replica.inFlight.decrementAndGet();
+            }
+        }
+        return owner.getFile(path, version, nbytes, offset);
+    }
+
+    /**
+     * Pick the less loaded of two random replicas, scored by smoothed
+     * latency times requests in flight.
+     *
+     * @param replicas replicas of one endpoint
+     * @return chosen replica, or null if there is none
+     */
+    private static Replica pickReplica(List<Replica> replicas) {
+        int n = replicas.size();
+        if (n == 0) {
+            return null;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Replica a = replicas.get(random.nextInt(n));
+        if (n == 1) {
+            return a;
+        }
+        Replica b = replicas.get(random.nextInt(n - 1));
+        if (b == a) {
+            b = replicas.get(n - 1);
+        }
+        return a.score() <= b.score() ? a : b;
+    }
+
+    /**
+     * Get file meta data from the owner of a path. If the path is missing
+     * there but still on one of its owners in an earlier ring, migrate it
+     * first.
+     *
+     * @param path relative path on server
+     * @return file meta data from the current owner
+     * @throws RemoteException if an RMI call fails
+     */
+    public FileMeta getFileMeta(String path) throws RemoteException {
+        Endpoint owner = endpointFor(ring, path);
+        FileMeta fileMeta = metaOf(owner, path);
+        if (fileMeta.exists()) {
+            return fileMeta;
+        }
+        List<Endpoint> checked = new ArrayList<>();
+        checked.add(owner);
+        for (TreeMap<Long, Endpoint> prevRing : previousRings) {
+            Endpoint prevOwner = endpointFor(prevRing, path);
+            if (checked.contains(prevOwner)) {
+                continue;
+            }
+            checked.add(prevOwner);
+            FileMeta prevMeta = metaOf(prevOwner, path);
+            if (prevMeta.exists() && !prevMeta.isDirectory()) {
+                return migrate(path, prevMeta, prevOwner, owner);
+            }
+        }
+        // Someone may have moved it between the lookups
+        return checked.size() > 1 ? metaOf(owner, path) : fileMeta;
+    }
+
+    /**
+     * Get file meta data through the scheduler of a server, so it does not
+     * queue behind bulk transfers.
+     */
+    private static FileMeta metaOf(Endpoint endpoint, String path) throws RemoteException {
+        try {
+            return AsyncFileHandler.await(endpoint.async.getFileMeta(path));
+        } catch (RemoteException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new RemoteException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Move a file to its new owner, or wait for the proxy that claimed the
+     * move to finish it.
+     *
+     * @param path     relative path on server
+     * @param fileMeta meta data of the file on its previous owner
+     * @param from     previous owner
+     * @param to       current owner
+     * @return file meta data from the current owner
+     * @throws RemoteException if an RMI call fails
+     */
+    private FileMeta migrate(String path,
+                             FileMeta fileMeta,
+                             Endpoint from,
+                             Endpoint to) throws RemoteException {
+        long deadline = System.nanoTime() + MIGRATION_WAIT_NANOS;
+        while (System.nanoTime() - deadline < 0) {
+            long writeId;
+            try {
+                writeId = to.handler.beginMigration(path);
+            } catch (RemoteException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new RemoteException(e.getMessage(), e);
+            }
+            if (writeId >= 0) {
+                try {
+                    copy(path, fileMeta, from, to, writeId);
+                    return metaOf(to, path);
+                } catch (StaleVersionException e) {
+                    // Replaced on the previous owner, or moved by someone else
+                    to.handler.abortMigration(writeId);
+                    fileMeta = metaOf(from, path);
+                    if (!fileMeta.exists()) {
+                        return metaOf(to, path);
+                    }
+                    continue;
+                } catch (IOException e) {
+                    to.handler.abortMigration(writeId);
+                    throw e instanceof RemoteException
+                            ? (RemoteException) e
+                            : new RemoteException(e.getMessage(), e);
+                }
+            }
+            // Another proxy is moving it
+            FileMeta ownerMeta = metaOf(to, path);
+            if (ownerMeta.exists()) {
+                return ownerMeta;
+            }
+            try {
+                Thread.sleep(MIGRATION_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        System.err.println("[ Gave up waiting for migration of " + path + " ]");
+        return metaOf(to, path);
+    }
+
+    /**
+     * Copy a file to its new owner under a claimed migration, then unlink it
+     * from its previous owner.
+     */
+    private void copy(String path,
+                      FileMeta fileMeta,
+                      Endpoint from,
+                      Endpoint to,
+                      long writeId) throws IOException {
+        System.err.println("[ Migrating " + path + " from " + from.url + " to " + to.url + " ]");
+        long offset = 0;
+        do {
+            int nbytes = (int) Math.min(chunkSize, fileMeta.getLength() - offset);
+            RawFile rawFile = from.handler.getFile(path, fileMeta.getVersion(), nbytes, offset);
+            if (rawFile == null) {
+                throw new StaleVersionException(path, fileMeta.getVersion());
+            }
+            to.handler.writeFile(writeId, rawFile.getBuf(), offset);
+            offset += nbytes;
+        } while (offset < fileMeta.getLength());
+        to.handler.commitMigration(writeId, fileMeta.getVersion() + 1);
+        from.handler.unlink(path);
+    }
+
+    private static Endpoint endpointFor(TreeMap<Long, Endpoint> ring, String path) {
+        Map.Entry<Long, Endpoint> entry = ring.ceilingEntry(hash(path));
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * 64-bit FNV-1a with a final avalanche mix.
+     *
+     * @param key string to hash
+     * @return hash point on the ring
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static class Endpoint {
+        private final String url;
+        private final RemoteFileHandler handler;
+        private final AsyncFileHandler async;
+        private final List<Replica> replicas;
+
+        /**
+         * Streams to the bulk port of the server, null if it has none
+         */
+        private volatile BulkClient bulk;
+
+        Endpoint(String url, RemoteFileHandler handler, AsyncFileHandler async) {
+            this.url = url;
+            this.handler = handler;
+            this.async = async;
+            this.replicas = new CopyOnWriteArrayList<>();
+        }
+
+        /**
+         * Read a chunk over the bulk streams, or over RMI if they fail.
+         */
+        RawFile getFile(String path, long version, int nbytes, long offset)
+                throws RemoteException {
+            BulkClient bulkClient = bulk;
+            if (bulkClient != null) {
+                try {
+                    return bulkClient.getFile(path, version, nbytes, offset);
+                } catch (IOException e) {
+                    System.err.println("[ Bulk read from " + url + " failed: " + e.getMessage() + " ]");
+                }
+            }
+            return handler.getFile(path, version, nbytes, offset);
+        }
+    }
+
+    private static class Replica {
+        private final String url;
+        private final RemoteFileHandler handler;
+        private final AtomicInteger inFlight;
+        private volatile double ewmaNanos = 0;
+        private volatile long lastSample;
+
+        Replica(String url, RemoteFileHandler handler) {
+            this.url = url;
+            this.handler = handler;
+            this.inFlight = new AtomicInteger();
+            this.lastSample = System.nanoTime();
+        }
+
+        synchronized void sample(long nanos) {
+            ewmaNanos = ewmaNanos == 0
+                    ? nanos
+                    : EWMA_ALPHA * nanos + (1 - EWMA_ALPHA) * ewmaNanos;
+            lastSample = System.nanoTime();
+        }
+
+        double score() {
+            if (System.nanoTime() - lastSample > PROBE_INTERVAL_NANOS) {
+                return 0;
+            }
+            return ewmaNanos * (inFlight.get() + 1);
+        }
+    }
+}
@@ -0,0 +1,551 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Index of the read copies in a cache directory shared by several proxy
+ * processes on one host, kept in a memory-mapped file next to the copies.
+ *
+ * <p>Each slot records one (path, version) with its size, the number of
+ * open references across all processes and a shared access clock. The
+ * header holds the bytes used by shared read copies and by copies private
+ * to one process, so all processes evict against one capacity, least
+ * recently used first, and never evict a copy another process has open.
+ * Every update is made under an exclusive lock on the first byte of the
+ * file. Each live process holds a shared lock on the second byte; the first
+ * process to start resets the reference counts left by dead processes.
+ *
+ * <p>A download in progress holds a claim slot naming the process doing it,
+ * so proxies sharing the directory never write the same partial file at
+ * once: the others wait for the copy and adopt it. A claim of a process no
+ * longer running is taken over.
+ *
+ * <p>Slots are found by linear probing. A removed entry is not left behind
+ * as a tombstone: the entries after it on its probe run are shifted back
+ * into the hole, so lookups stop at the first empty slot however many
+ * copies have come and gone.
+ */
+public class SharedCacheIndex {
+    private static final int MAGIC = 0x15440CAE;
+    private static final int SLOT_SIZE = 512;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAX_KEY_LEN = SLOT_SIZE - 48;
+    /* Header offsets */
+    private static final int H_MAGIC = 0;
+    private static final int H_SLOTS = 4;
+    private static final int H_SHARED_BYTES = 8;
+    private static final int H_PRIVATE_BYTES = 16;
+    private static final int H_CLOCK = 24;
+    /* Slot offsets */
+    private static final int S_STATE = 0;
+    private static final int S_KEY_LEN = 4;
+    private static final int S_VERSION = 8;
+    private static final int S_SIZE = 16;
+    private static final int S_REF_CNT = 24;
+    private static final int S_LAST_ACCESS = 32;
+    private static final int S_OWNER = 40;
+    private static final int S_KEY = 48;
+    /* Slot states */
+    private static final int EMPTY = 0;
+    private static final int USED = 1;
+    private static final int CLAIMED = 3;
+    /* Lock regions */
+    private static final long UPDATE_REGION = 0;
+    private static final long LIVE_REGION = 1;
+    private static final long PID = ProcessHandle.current().pid();
+
+    private final int slotCount;
+    private final FileChannel channel;
+    private final MappedByteBuffer buf;
+
+    /**
+     * Open or create the index of a cache directory.
+     *
+     * @param indexPath path of the index file
+     * @param slotCount number of slots if the index has to be created
+     * @throws IOException if the index cannot be mapped
+     */
+    public SharedCacheIndex(String indexPath, int slotCount) throws IOException {
+        this.slotCount = slotCount;
+        this.channel = FileChannel.open(Paths.get(indexPath),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.buf = channel.map(FileChannel.MapMode.READ_WRITE,
+                0,
+                HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+        FileLock alone = channel.tryLock(LIVE_REGION, 1, false);
+        synchronized (this) {
+            FileLock lock = channel.lock(UPDATE_REGION, 1, false);
+            try {
+                if (buf.getInt(H_MAGIC) != MAGIC || buf.getInt(H_SLOTS) != slotCount) {
+                    System.err.println("[ Initializing shared cache index: " + indexPath + " ]");
+                    for (int i = 0; i < HEADER_SIZE + slotCount * SLOT_SIZE; i += 8) {
+                        buf.putLong(i, 0L);
+                    }
+                    buf.putInt(H_SLOTS, slotCount);
+                    buf.putInt(H_MAGIC, MAGIC);
+                } else if (alone != null) {
+                    // No other process is alive, nobody holds a reference
+                    for (int slot = 0; slot < slotCount; slot++) {
+                        int off = offset(slot);
+                        // Deleting shifts the next entry into this slot
+                        while (buf.getInt(off + S_STATE) == CLAIMED) {
+                            delete(slot);
+                        }
+                        buf.putInt(off + S_REF_CNT, 0);
+                    }
+                    buf.putLong(H_PRIVATE_BYTES, 0L);
+                }
+            } finally {
+                release(lock);
+            }
+        }
+        if (alone != null) {
+            alone.release();
+        }
+        channel.lock(LIVE_REGION, 1, true);
+    }
+
+    /**
+     * Add a complete read copy. An entry already present is left alone.
+     *
+     * @param origPath relative original path on server
+     * @param version  version of the copy
+     * @param size     bytes on disk
+     * @param refCnt   references already held by this process
+     * @return false if the copy could not be indexed and must be counted
+     * as private
+     */
+    public synchronized boolean add(String origPath, long version, long size, int refCnt) {
+        byte[] key = origPath.getBytes(StandardCharsets.UTF_8);
+        if (key.length > MAX_KEY_LEN) {
+            return false;
+        }
+        FileLock lock = null;
+        try {
+            lock = channel.lock(UPDATE_REGION, 1, false);
+            if (find(key, version) >= 0) {
+                return true;
+            }
+            // The claim of the download ends as the copy is indexed
+            int claim = findClaim(key, version);
+            if (claim >= 0) {
+                delete(claim);
+            }
+            int slot = findFree(key, version);
+            if (slot < 0) {
+                return false;
+            }
+            int off = offset(slot);
+            buf.putInt(off + S_KEY_LEN, key.length);
+            buf.putLong(off + S_VERSION, version);
+            buf.putLong(off + S_SIZE, size);
+            buf.putInt(off + S_REF_CNT, refCnt);
+            buf.putLong(off + S_LAST_ACCESS, tick());
+            buf.put(off + S_KEY, key);
+            buf.putInt(off + S_STATE, USED);
+            buf.putLong(H_SHARED_BYTES, buf.getLong(H_SHARED_BYTES) + size);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Check that a read copy is still indexed, and mark it as recently
+     * used.
+     *
+     * @param origPath relative original path on server
+     * @param version  version of the copy
+     * @return false if no process holds the copy, or it was evicted
+     */
+    public synchronized boolean touch(String origPath, long version) {
+        byte[] key = origPath.getBytes(StandardCharsets.UTF_8);
+        FileLock lock = null;
+        try {
+            lock = channel.lock(UPDATE_REGION, 1, false);
+            int slot = find(key, version);
+            if (slot < 0) {
+                return false;
+            }
+            buf.putLong(offset(slot) + S_LAST_ACCESS, tick());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Add to the references held on a read copy.
+     *
+     * @param origPath relative original path on server
+     * @param version  version of the copy
+     * @param delta    +1 on open, -1 on close
+     */
+    public synchronized void ref(String origPath, long version, int delta) {
+        byte[] key = origPath.getBytes(StandardCharsets.UTF_8);
+        FileLock lock = null;
+        try {
+            lock = channel.lock(UPDATE_REGION, 1, false);
+            int slot = find(key, version);
+            if (slot >= 0) {
+                int off = offset(slot) + S_REF_CNT;
+                buf.putInt(off, Math.max(0, buf.getInt(off) + delta));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Get the references held on a read copy by all processes.
+     *
+     * @param origPath relative original path on server
+     * @param version  version of the copy
+     * @return reference count, 0 if not indexed
+     */
+    public synchronized int getRefCnt(String origPath, long version) {
+        byte[] key = origPath.getBytes(StandardCharsets.UTF_8);
+        FileLock lock = null;
+        try {
+            lock = channel.lock(UPDATE_REGION, 1, false);
+            int slot = find(key, version);
+            return slot < 0 ? 0 : buf.getInt(offset(slot) + S_REF_CNT);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Remove a read copy, unless another process has it open.
+     *
+     * @param origPath relative original path on server
+     * @param version  version of the copy
+     * @param force    remove even if other processes hold references
+     * @return true if the entry was removed or was not indexed, so the
+     * caller may delete the file; false if it is still referenced
+     */
+    public synchronized boolean remove(String origPath, long version, boolean force) {
+        byte[] key = origPath.getBytes(StandardCharsets.UTF_8);
+        FileLock lock = null;
+        try {
+            lock = channel.lock(UPDATE_REGION, 1, false);
+            int slot = find(key, version);
+            if (slot < 0) {
+                return true;
+            }
+            if (!force && buf.getInt(offset(slot) + S_REF_CNT) > 0) {
+                return false;
+            }
+            clear(slot);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Remove the least recently used read copy that nobody has open. The
+     * caller deletes its file.
+     *
+     * @return suffix path of the evicted copy, or null if every copy is open
+     */
+    public synchronized String evict() {
+        FileLock lock = null;
+        try {
+            lock = channel.lock(UPDATE_REGION, 1, false);
+            int victim = -1;
+            long oldest = Long.MAX_VALUE;
+            for (int slot = 0; slot < slotCount; slot++) {
+                int off = offset(slot);
+                if (buf.getInt(off + S_STATE) == USED
+                        && buf.getInt(off + S_REF_CNT) == 0
+                        && buf.getLong(off + S_LAST_ACCESS) < oldest) {
+                    oldest = buf.getLong(off + S_LAST_ACCESS);
+                    victim = slot;
+                }
+            }
+            if (victim < 0) {
+                return null;
+            }
+            int off = offset(victim);
+            String suffixPath = CacheBlock.genSuffixPath(readKey(off),
+                    buf.getLong(off + S_VERSION));
+            clear(victim);
+            return suffixPath;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Claim the download of a read copy for this process.
+     *
+     * @param origPath relative original path on server
+     * @param version  version of the copy
+     * @return false if another live process is downloading it; true
+     * otherwise, including when the copy is indexed already or the index is
+     * too full to hold the claim
+     */
+    public synchronized boolean claim(String origPath, long version) {
+        byte[] key = origPath.getBytes(StandardCharsets.UTF_8);
+        if (key.length > MAX_KEY_LEN) {
+            return true;
+        }
+        FileLock lock = null;
+        try {
+            lock = channel.lock(UPDATE_REGION, 1, false);
+            if (find(key, version) >= 0) {
+                return true;
+            }
+            int slot = findClaim(key, version);
+            if (slot >= 0) {
+                long owner = buf.getLong(offset(slot) + S_OWNER);
+                if (owner != PID && ProcessHandle.of(owner).map(ProcessHandle::isAlive).orElse(false)) {
+                    return false;
+                }
+                buf.putLong(offset(slot) + S_OWNER, PID);
+                return true;
+            }
+            slot = findFree(key, version);
+            if (slot < 0) {
+                return true;
+            }
+            int off = offset(slot);
+            buf.putInt(off + S_KEY_LEN, key.length);
+            buf.putLong(off + S_VERSION, version);
+            buf.putLong(off + S_SIZE, 0L);
+            buf.putInt(off + S_REF_CNT, 0);
+            buf.putLong(off + S_OWNER, PID);
+            buf.put(off + S_KEY, key);
+            buf.putInt(off + S_STATE, CLAIMED);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return true;
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Give up the claim of a download this process did not finish, so
+     * another process may take it over.
+     *
+     * @param origPath relative original path on server
+     * @param version  version of the copy
+     */
+    public synchronized void unclaim(String origPath, long version) {
+        byte[] key = origPath.getBytes(StandardCharsets.UTF_8);
+        FileLock lock = null;
+        try {
+            lock = channel.lock(UPDATE_REGION, 1, false);
+            int slot = findClaim(key, version);
+            if (slot >= 0 && buf.getLong(offset(slot) + S_OWNER) == PID) {
+                delete(slot);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Account bytes of copies private to this process, such as write copies.
+     *
+     * @param delta bytes added, negative when freed
+     */
+    public synchronized void addPrivate(long delta) {
+        FileLock lock = null;
+        try {
+            lock = channel.lock(UPDATE_REGION, 1, false);
+            buf.putLong(H_PRIVATE_BYTES, Math.max(0, buf.getLong(H_PRIVATE_BYTES) + delta));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * @return bytes used in the cache directory by all processes
+     */
+    public synchronized long getUsage() {
+        FileLock lock = null;
+        try {
+            lock = channel.lock(UPDATE_REGION, 1, false);
+            return buf.getLong(H_SHARED_BYTES) + buf.getLong(H_PRIVATE_BYTES);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            release(lock);
+        }
+    }
+
+    private static void release(FileLock lock) {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void clear(int slot) {
+        int off = offset(slot);
+        buf.putLong(H_SHARED_BYTES, buf.getLong(H_SHARED_BYTES) - buf.getLong(off + S_SIZE));
+        delete(slot);
+    }
+
+    /**
+     * Empty a slot by backward shift: each later entry of the probe run
+     * whose home does not lie between the hole and itself moves into the
+     * hole, which then moves to where that entry was.
+     */
+    private void delete(int slot) {
+        int hole = slot;
+        buf.putInt(offset(hole) + S_STATE, EMPTY);
+        int next = (hole + 1) % slotCount;
+        while (buf.getInt(offset(next) + S_STATE) != EMPTY) {
+            int off = offset(next);
+            int home = home(off);
+            if (Math.floorMod(next - home, slotCount) >= Math.floorMod(next - hole, slotCount)) {
+                int dst = offset(hole);
+                for (int i = 0; i < SLOT_SIZE; i += 8) {
+                    buf.putLong(dst + i, buf.getLong(off + i));
+                }
+                buf.putInt(off + S_STATE, EMPTY);
+                hole = next;
+            }
+            next = (next + 1) % slotCount;
+        }
+    }
+
+    private long tick() {
+        long clock = buf.getLong(H_CLOCK) + 1;
+        buf.putLong(H_CLOCK, clock);
+        return clock;
+    }
+
+    /**
+     * Find the slot holding a key by linear probing.
+     *
+     * @return slot index, or -1 if absent
+     */
+    private int find(byte[] key, long version) {
+        return find(key, version, USED);
+    }
+
+    /**
+     * Find the slot holding the download claim of a key.
+     *
+     * @return slot index, or -1 if nobody claimed it
+     */
+    private int findClaim(byte[] key, long version) {
+        return find(key, version, CLAIMED);
+    }
+
+    private int find(byte[] key, long version, int wanted) {
+        int start = home(key, version);
+        for (int i = 0; i < slotCount; i++) {
+            int slot = (start + i) % slotCount;
+            int off = offset(slot);
+            int state = buf.getInt(off + S_STATE);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == wanted && matches(off, key, version)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the first empty slot on the probe sequence of a key.
+     *
+     * @return slot index, or -1 if the index is full
+     */
+    private int findFree(byte[] key, long version) {
+        int start = home(key, version);
+        for (int i = 0; i < slotCount; i++) {
+            int slot = (start + i) % slotCount;
+            if (buf.getInt(offset(slot) + S_STATE) == EMPTY) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int off, byte[] key, long version) {
+        if (buf.getLong(off + S_VERSION) != version
+                || buf.getInt(off + S_KEY_LEN) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buf.get(off + S_KEY + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readKey(int off) {
+        byte[] key = new byte[buf.getInt(off + S_KEY_LEN)];
+        buf.get(off + S_KEY, key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private int home(byte[] key, long version) {
+        int h = 17;
+        for (byte b : key) {
+            h = 31 * h + b;
+        }
+        h = 31 * h + Long.hashCode(version);
+        return Math.floorMod(h, slotCount);
+    }
+
+    /**
+     * @return home slot of the entry at a slot offset, hashed in place like
+     * {@link #home(byte[], long)}
+     */
+    private int home(int off) {
+        int h = 17;
+        int keyLen = buf.getInt(off + S_KEY_LEN);
+        for (int i = 0; i < keyLen; i++) {
+            h = 31 * h + buf.get(off + S_KEY + i);
+        }
+        h = 31 * h + Long.hashCode(buf.getLong(off + S_VERSION));
+        return Math.floorMod(h, slotCount);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+}
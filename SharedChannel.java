@@ -0,0 +1,43 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One read-only channel on a read copy, shared by all read-only sessions on
+ * it. Sessions read with positional reads, so they need no descriptor or
+ * position of their own in the kernel.
+ */
+public class SharedChannel implements ReadSource {
+    private final FileChannel channel;
+    private final long length;
+
+    public SharedChannel(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.length = channel.size();
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public int read(long pos, byte[] buf) throws IOException {
+        if (pos >= length) {
+            return -1;
+        }
+        ByteBuffer dst = ByteBuffer.wrap(buf, 0, (int) Math.min(buf.length, length - pos));
+        while (dst.hasRemaining()
+                && channel.read(dst, pos + dst.position()) != -1) {
+            // Keep reading until the buffer is full or end of file
+        }
+        return dst.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
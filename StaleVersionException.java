@@ -0,0 +1,14 @@
+import java.io.IOException;
+
+/**
+ * Thrown when the server no longer holds the version of a file a download
+ * was started on, because a newer version was published in the meantime.
+ * The download has to start over with fresh meta data.
+ */
+public class StaleVersionException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public StaleVersionException(String path, long version) {
+        super("Version " + version + " of " + path + " is no longer available");
+    }
+}
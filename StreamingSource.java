@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntSupplier;
+
+/**
+ * A version too large for the cache, read by one session without storing
+ * it in the cache root. Only a sliding window of chunks is kept in memory.
+ * Chunks are fetched when read, and while the session reads sequentially
+ * the chunks after it are fetched ahead in the background, as many as the
+ * read ahead allows at the time of the read.
+ */
+public class StreamingSource implements ReadSource {
+    /**
+     * Threads fetching chunks for all streaming sessions
+     */
+    private static final int FETCH_THREADS = 4;
+    private static final ExecutorService fetchPool = Executors.newFixedThreadPool(FETCH_THREADS, r -> {
+        Thread t = new Thread(r, "stream-fetch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Fetches one chunk of the streamed version.
+     */
+    public interface ChunkFetcher {
+        /**
+         * @param offset offset of the chunk
+         * @param nbytes length of the chunk
+         * @return chunk read, or null if the version is gone
+         * @throws RemoteException if the fetch fails
+         */
+        RawFile fetch(long offset, int nbytes) throws RemoteException;
+    }
+
+    private final String path;
+    private final long version;
+    private final long length;
+    private final int chunkSize;
+    private final int windowChunks;
+    private final IntSupplier readAhead;
+    private final ChunkFetcher fetcher;
+    /**
+     * Maps chunk index to its contents, least recently used first
+     */
+    private final Map<Long, CompletableFuture<byte[]>> window;
+    /**
+     * Chunk index read last, to detect sequential reads
+     */
+    private long lastChunk = -2;
+    private boolean closed = false;
+
+    /**
+     * @param path         relative path on server
+     * @param version      version streamed
+     * @param length       length of the version
+     * @param chunkSize    bytes per chunk
+     * @param windowChunks chunks kept in memory
+     * @param readAhead    chunks fetched ahead of a sequential reader, at
+     *                     most windowChunks - 1
+     * @param fetcher      source of the chunks
+     */
+    public StreamingSource(String path,
+                           long version,
+                           long length,
+                           int chunkSize,
+                           int windowChunks,
+                           IntSupplier readAhead,
+                           ChunkFetcher fetcher) {
+        this.path = path;
+        this.version = version;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.windowChunks = windowChunks;
+        this.readAhead = readAhead;
+        this.fetcher = fetcher;
+        this.window = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CompletableFuture<byte[]>> eldest) {
+                return size() > windowChunks;
+            }
+        };
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public int read(long pos, byte[] buf) throws IOException {
+        if (pos >= length) {
+            return -1;
+        }
+        long index = pos / chunkSize;
+        CompletableFuture<byte[]> future;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Stream closed: " + path);
+            }
+            future = chunk(index);
+            if (index == lastChunk + 1 || index == lastChunk) {
+                int ahead = Math.min(readAhead.getAsInt(), windowChunks - 1);
+                for (long next = index + 1; next <= index + ahead; next++) {
+                    chunk(next);
+                }
+            }
+            lastChunk = index;
+        }
+        byte[] data;
+        try {
+            data = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            synchronized (this) {
+                // Let a later read try again
+                window.remove(index, future);
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        int start = (int) (pos - index * chunkSize);
+        int n = Math.min(buf.length, data.length - start);
+        System.arraycopy(data, start, buf, 0, n);
+        return n;
+    }
+
+    /**
+     * Get a chunk from the window, fetching it if absent.
+     */
+    private CompletableFuture<byte[]> chunk(long index) {
+        long offset = index * chunkSize;
+        if (offset >= length) {
+            return null;
+        }
+        CompletableFuture<byte[]> future = window.get(index);
+        if (future == null) {
+            int nbytes = (int) Math.min(chunkSize, length - offset);
+            future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    RawFile rawFile = fetcher.fetch(offset, nbytes);
+                    if (rawFile == null) {
+                        throw new StaleVersionException(path, version);
+                    }
+                    return rawFile.getBuf();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, fetchPool);
+            window.put(index, future);
+        }
+        return future;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        window.clear();
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Chunk size and number of chunks in flight for transfers with one server,
+ * tuned from the goodput observed, in the manner of TCP congestion control.
+ *
+ * <p>Completed chunks are grouped in rounds of at least one window each.
+ * While the goodput of a round keeps improving, the chunk size doubles
+ * (slow start). Afterwards the window grows by one chunk per round
+ * (additive increase) until two rounds in a row are much slower than the
+ * best one, which halves the window; a failed call halves the chunk size
+ * too (multiplicative decrease). Chunk size and bytes in flight are bounded
+ * by the heap, so tuning never exhausts it.
+ */
+public class TransferTuner {
+    private static final int MIN_CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_CHUNK_SIZE = BulkServer.MAX_CHUNK_SIZE;
+    private static final int MAX_WINDOW = 16;
+    /**
+     * Fewest chunks in a round, so one slow call is not taken for loss
+     */
+    private static final int MIN_ROUND_CHUNKS = 4;
+    /**
+     * Goodput gain of a round over the best one that counts as improving
+     */
+    private static final double GAIN = 1.05;
+    /**
+     * Goodput of a round under this fraction of the best one backs off
+     */
+    private static final double LOSS = 0.75;
+    /**
+     * Completions further apart than this start a new round, so idle time
+     * between transfers is not taken for a slow link
+     */
+    private static final long IDLE_NANOS = 1_000_000_000L;
+
+    private final int maxChunkSize;
+    private final long maxInFlightBytes;
+    private int chunkSize;
+    private int window = 1;
+    private boolean slowStart = true;
+    /**
+     * Best goodput seen, in bytes per second
+     */
+    private double bestGoodput = 0;
+    private long roundStart = 0;
+    private long roundBytes = 0;
+    private int roundChunks = 0;
+    private long lastCompletion = 0;
+    /**
+     * Consecutive rounds much slower than the best one
+     */
+    private int slowRounds = 0;
+
+    /**
+     * @param initialChunkSize chunk size used before anything is measured
+     */
+    public TransferTuner(int initialChunkSize) {
+        long heap = Runtime.getRuntime().maxMemory();
+        this.maxChunkSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, heap / 256));
+        this.maxInFlightBytes = Math.max(maxChunkSize, heap / 16);
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(initialChunkSize, maxChunkSize));
+    }
+
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return chunks that may be in flight for one transfer
+     */
+    public synchronized int getWindow() {
+        return (int) Math.max(1, Math.min(window, maxInFlightBytes / chunkSize));
+    }
+
+    /**
+     * Record a chunk transferred.
+     *
+     * @param bytes bytes in the chunk
+     * @param start System.nanoTime() when the call was made
+     */
+    public synchronized void onSuccess(int bytes, long start) {
+        long now = System.nanoTime();
+        if (roundChunks == 0 || now - lastCompletion > IDLE_NANOS) {
+            roundStart = start;
+            roundBytes = 0;
+            roundChunks = 0;
+        }
+        lastCompletion = now;
+        roundBytes += bytes;
+        // Chunks cut short by the end of a file say little about the link
+        if (bytes < chunkSize / 2) {
+            return;
+        }
+        if (++roundChunks < Math.max(MIN_ROUND_CHUNKS, getWindow())) {
+            return;
+        }
+        double goodput = roundBytes * 1e9 / Math.max(1, now - roundStart);
+        roundChunks = 0;
+        if (goodput < bestGoodput * LOSS) {
+            if (++slowRounds >= 2) {
+                slowRounds = 0;
+                slowStart = false;
+                window = Math.max(1, window / 2);
+                // The link may have changed, let the best goodput follow it
+                bestGoodput = (bestGoodput + goodput) / 2;
+            }
+            return;
+        }
+        slowRounds = 0;
+        boolean improved = goodput > bestGoodput * GAIN;
+        bestGoodput = Math.max(bestGoodput, goodput);
+        if (slowStart && improved && chunkSize < maxChunkSize) {
+            chunkSize = Math.min(chunkSize * 2, maxChunkSize);
+        } else {
+            slowStart = false;
+            if (window < MAX_WINDOW) {
+                window++;
+            }
+        }
+    }
+
+    /**
+     * Record a failed call.
+     */
+    public synchronized void onFailure() {
+        slowStart = false;
+        window = Math.max(1, window / 2);
+        chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize / 2);
+        roundChunks = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "chunk " + chunkSize + " B, window " + getWindow()
+                + ", goodput " + (long) bestGoodput + " B/s";
+    }
+}
@@ -0,0 +1,48 @@
+import java.io.Serializable;
+
+/**
+ * A change of a file on the primary server, streamed to its replicas.
+ */
+public class VersionEvent implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long seq;
+    private final String path;
+    private final long version;
+    private final long length;
+    private final boolean exists;
+
+    VersionEvent(long seq, String path, long version, long length, boolean exists) {
+        this.seq = seq;
+        this.path = path;
+        this.version = version;
+        this.length = length;
+        this.exists = exists;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @return relative path on server
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return false if the file was unlinked
+     */
+    public boolean exists() {
+        return exists;
+    }
+}
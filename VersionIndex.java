@@ -0,0 +1,612 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Index of the read copies in the cache. Original paths are interned to int
+ * path ids, each holding the version current for its path, and every cached
+ * (path id, version) maps to its block. Everything lives in parallel arrays
+ * with open addressing, so an entry costs a few array slots instead of map
+ * nodes and key strings, and versions stay primitive longs. Lookups hash the
+ * path as given, or the path part of a suffix path in place, without
+ * building a string, and run without locking: they read optimistically and
+ * retry under the read lock only if a writer got in the way.
+ *
+ * <p>Collisions are resolved by linear probing. Removals shift the
+ * following entries back instead of leaving tombstones, so lookups never
+ * slow down as entries come and go. A path id is counted once for each
+ * block indexed under it, for its current version and for each reference
+ * taken with {@link #intern}; it is freed for reuse when the count drops to
+ * zero.
+ */
+public class VersionIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final String cacheRoot;
+    private final StampedLock lock = new StampedLock();
+    private volatile Table table = new Table(INITIAL_CAPACITY, INITIAL_CAPACITY, INITIAL_CAPACITY);
+    private int pathCount = 0;
+    private int blockCount = 0;
+    /**
+     * Number of paths with a version cached
+     */
+    private int versionCount = 0;
+    /**
+     * Path ids handed out so far, freed ones included
+     */
+    private int nextId = 0;
+    private int[] freeIds = new int[16];
+    private int freeCount = 0;
+
+    private static class Table {
+        /**
+         * Path hash: path id + 1 of each slot, 0 if empty
+         */
+        private final int[] pathSlots;
+        private final int pathMask;
+        /**
+         * Interned path of each path id, null if free
+         */
+        private final String[] paths;
+        /**
+         * Version current for each path id, -1 if none
+         */
+        private final long[] current;
+        private final int[] refs;
+        /**
+         * Block hash: path id + 1 of each slot, 0 if empty
+         */
+        private final int[] blockIds;
+        private final long[] blockVersions;
+        private final CacheBlock[] blocks;
+        private final int blockMask;
+
+        Table(int pathCapacity, int idCapacity, int blockCapacity) {
+            pathSlots = new int[pathCapacity];
+            pathMask = pathCapacity - 1;
+            paths = new String[idCapacity];
+            current = new long[idCapacity];
+            refs = new int[idCapacity];
+            blockIds = new int[blockCapacity];
+            blockVersions = new long[blockCapacity];
+            blocks = new CacheBlock[blockCapacity];
+            blockMask = blockCapacity - 1;
+        }
+
+        /**
+         * Find the id of the path held by the first <code>len</code>
+         * characters of a string.
+         *
+         * @return path id, or -1 if the path is not interned
+         */
+        int findId(String s, int len) {
+            int slot = hash(s, len) & pathMask;
+            for (int probes = 0; probes <= pathMask; probes++) {
+                int id = pathSlots[slot] - 1;
+                if (id < 0) {
+                    return -1;
+                }
+                String path = paths[id];
+                if (path != null && path.length() == len && path.regionMatches(0, s, 0, len)) {
+                    return id;
+                }
+                slot = (slot + 1) & pathMask;
+            }
+            return -1;
+        }
+
+        /**
+         * @return slot of the block of (path id, version), or -1 if none is
+         * indexed
+         */
+        int findBlock(int id, long version) {
+            int slot = hash(id, version) & blockMask;
+            for (int probes = 0; probes <= blockMask; probes++) {
+                int curr = blockIds[slot] - 1;
+                if (curr < 0) {
+                    return -1;
+                }
+                if (curr == id && blockVersions[slot] == version) {
+                    return slot;
+                }
+                slot = (slot + 1) & blockMask;
+            }
+            return -1;
+        }
+
+        /**
+         * @return block of (path id, version), or null if none is indexed
+         */
+        CacheBlock getBlock(int id, long version) {
+            if (id < 0 || version < 0) {
+                return null;
+            }
+            int slot = findBlock(id, version);
+            return slot < 0 ? null : blocks[slot];
+        }
+    }
+
+    /**
+     * @param cacheRoot cache root the read copies are under
+     */
+    public VersionIndex(String cacheRoot) {
+        this.cacheRoot = cacheRoot;
+    }
+
+    private static int hash(String s, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(int id, long version) {
+        long h = (id * 0x9E3779B97F4A7C15L) ^ version;
+        h ^= h >>> 32;
+        return (int) (h ^ (h >>> 16));
+    }
+
+    /**
+     * Parse the version of a suffix path, path + _ + version.
+     *
+     * @return version, or -1 if the suffix path does not end with one
+     */
+    private static long parseVersion(String suffixPath, int sep) {
+        if (sep < 0 || sep == suffixPath.length() - 1) {
+            return -1;
+        }
+        long version = 0;
+        for (int i = sep + 1; i < suffixPath.length(); i++) {
+            char c = suffixPath.charAt(i);
+            if (c < '0' || c > '9' || version > (Long.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            version = version * 10 + (c - '0');
+        }
+        return version;
+    }
+
+    public String getCacheRoot() {
+        return cacheRoot;
+    }
+
+    /**
+     * @param id path id taken from {@link #intern} or a block
+     * @return interned path of the id
+     */
+    public String getPath(int id) {
+        long stamp = lock.tryOptimisticRead();
+        String path = table.paths[id];
+        if (lock.validate(stamp)) {
+            return path;
+        }
+        stamp = lock.readLock();
+        try {
+            return table.paths[id];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param path relative original path on server
+     * @return version cached, or -1 if none is
+     */
+    public long getVersion(String path) {
+        long stamp = lock.tryOptimisticRead();
+        Table t = table;
+        int id = t.findId(path, path.length());
+        long version = id < 0 ? -1L : t.current[id];
+        if (lock.validate(stamp)) {
+            return version;
+        }
+        stamp = lock.readLock();
+        try {
+            t = table;
+            id = t.findId(path, path.length());
+            return id < 0 ? -1L : t.current[id];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param path relative original path on server
+     * @return read copy block of the version cached, or null if none is
+     */
+    public CacheBlock getBlock(String path) {
+        long stamp = lock.tryOptimisticRead();
+        Table t = table;
+        int id = t.findId(path, path.length());
+        CacheBlock block = id < 0 ? null : t.getBlock(id, t.current[id]);
+        if (lock.validate(stamp)) {
+            return block;
+        }
+        stamp = lock.readLock();
+        try {
+            t = table;
+            id = t.findId(path, path.length());
+            return id < 0 ? null : t.getBlock(id, t.current[id]);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param path    relative original path on server
+     * @param version version wanted, current or not
+     * @return read copy block of the version, or null if it is not cached
+     */
+    public CacheBlock getBlock(String path, long version) {
+        return getBlock(path, path.length(), version);
+    }
+
+    /**
+     * Find a read copy by its suffix path, path + _ + version, without
+     * splitting it.
+     *
+     * @param suffixPath relative suffix path of the read copy
+     * @return read copy block, or null if it is not cached
+     */
+    public CacheBlock getBlockBySuffixPath(String suffixPath) {
+        int sep = suffixPath.lastIndexOf('_');
+        long version = parseVersion(suffixPath, sep);
+        return version < 0 ? null : getBlock(suffixPath, sep, version);
+    }
+
+    private CacheBlock getBlock(String s, int len, long version) {
+        long stamp = lock.tryOptimisticRead();
+        Table t = table;
+        CacheBlock block = t.getBlock(t.findId(s, len), version);
+        if (lock.validate(stamp)) {
+            return block;
+        }
+        stamp = lock.readLock();
+        try {
+            t = table;
+            return t.getBlock(t.findId(s, len), version);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean contains(String path) {
+        return getVersion(path) >= 0;
+    }
+
+    /**
+     * @return true if the block is the one indexed under its path id and
+     * version
+     */
+    public boolean contains(CacheBlock block) {
+        long stamp = lock.readLock();
+        try {
+            return table.getBlock(block.getPathId(), block.getVersion()) == block;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Intern a path and take a reference on its id, handed over to the
+     * block made with it by {@link #put}, or given back with
+     * {@link #release}.
+     *
+     * @param path relative original path on server
+     * @return path id
+     */
+    public int intern(String path) {
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int id = t.findId(path, path.length());
+            if (id < 0) {
+                id = addPath(path);
+            }
+            table.refs[id]++;
+            return id;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Give back a reference taken with {@link #intern}.
+     *
+     * @param id path id
+     */
+    public void release(int id) {
+        long stamp = lock.writeLock();
+        try {
+            unref(id);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Index a read copy block under its path id and version, taking over
+     * the reference its path id was interned with. A block already indexed
+     * there is replaced.
+     *
+     * @param block read copy block
+     */
+    public void put(CacheBlock block) {
+        long stamp = lock.writeLock();
+        try {
+            insert(block);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Drop a read copy block from the index, if it is the one indexed under
+     * its path id and version.
+     *
+     * @param block read copy block
+     * @return true if the block was indexed
+     */
+    public boolean remove(CacheBlock block) {
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int slot = t.findBlock(block.getPathId(), block.getVersion());
+            if (slot < 0 || t.blocks[slot] != block) {
+                return false;
+            }
+            removeBlockSlot(t, slot);
+            unref(block.getPathId());
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Index a read copy block under a new version, after it was rewritten
+     * in place.
+     *
+     * @param block   read copy block
+     * @param version new version of the block
+     */
+    public void move(CacheBlock block, long version) {
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int slot = t.findBlock(block.getPathId(), block.getVersion());
+            if (slot >= 0 && t.blocks[slot] == block) {
+                // The block keeps its reference across the move
+                removeBlockSlot(t, slot);
+            } else {
+                t.refs[block.getPathId()]++;
+            }
+            block.setVersion(version);
+            insert(block);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Set the version cached for a path.
+     *
+     * @param id      path id
+     * @param version version cached
+     */
+    public void setVersion(int id, long version) {
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            if (t.current[id] < 0) {
+                t.refs[id]++;
+                versionCount++;
+            }
+            t.current[id] = version;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Forget the version cached for a path.
+     *
+     * @param path relative original path on server
+     * @return true if a version was cached
+     */
+    public boolean remove(String path) {
+        return remove(path, -1L);
+    }
+
+    /**
+     * Forget the version cached for a path, if it is the version given.
+     *
+     * @param path    relative original path on server
+     * @param version version to forget, or -1 for any
+     * @return true if the version was forgotten
+     */
+    public boolean remove(String path, long version) {
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int id = t.findId(path, path.length());
+            if (id < 0 || t.current[id] < 0 || (version >= 0 && t.current[id] != version)) {
+                return false;
+            }
+            t.current[id] = -1;
+            versionCount--;
+            unref(id);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void insert(CacheBlock block) {
+        if (blockCount + 1 > table.blocks.length * 2 / 3) {
+            resize(table.pathSlots.length, table.paths.length, table.blocks.length * 2);
+        }
+        Table t = table;
+        int id = block.getPathId();
+        int slot = hash(id, block.getVersion()) & t.blockMask;
+        while (t.blockIds[slot] != 0
+                && !(t.blockIds[slot] == id + 1 && t.blockVersions[slot] == block.getVersion())) {
+            slot = (slot + 1) & t.blockMask;
+        }
+        if (t.blockIds[slot] == 0) {
+            t.blockIds[slot] = id + 1;
+            t.blockVersions[slot] = block.getVersion();
+            blockCount++;
+        } else {
+            // The replaced block gives its reference up
+            unref(id);
+        }
+        t.blocks[slot] = block;
+    }
+
+    private int addPath(String path) {
+        if (pathCount + 1 > table.pathSlots.length * 2 / 3) {
+            resize(table.pathSlots.length * 2, table.paths.length, table.blocks.length);
+        }
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            if (nextId == table.paths.length) {
+                resize(table.pathSlots.length, table.paths.length * 2, table.blocks.length);
+            }
+            id = nextId++;
+        }
+        Table t = table;
+        t.paths[id] = path;
+        t.current[id] = -1;
+        t.refs[id] = 0;
+        int slot = hash(path, path.length()) & t.pathMask;
+        while (t.pathSlots[slot] != 0) {
+            slot = (slot + 1) & t.pathMask;
+        }
+        t.pathSlots[slot] = id + 1;
+        pathCount++;
+        return id;
+    }
+
+    /**
+     * Drop a reference on a path id, freeing the id on the last one.
+     */
+    private void unref(int id) {
+        Table t = table;
+        if (--t.refs[id] > 0) {
+            return;
+        }
+        String path = t.paths[id];
+        int slot = hash(path, path.length()) & t.pathMask;
+        while (t.pathSlots[slot] != id + 1) {
+            slot = (slot + 1) & t.pathMask;
+        }
+        // Shift back the paths probed past the freed slot
+        int free = slot;
+        int curr = (slot + 1) & t.pathMask;
+        while (t.pathSlots[curr] != 0) {
+            String currPath = t.paths[t.pathSlots[curr] - 1];
+            int home = hash(currPath, currPath.length()) & t.pathMask;
+            if (((curr - home) & t.pathMask) >= ((curr - free) & t.pathMask)) {
+                t.pathSlots[free] = t.pathSlots[curr];
+                free = curr;
+            }
+            curr = (curr + 1) & t.pathMask;
+        }
+        t.pathSlots[free] = 0;
+        t.paths[id] = null;
+        t.current[id] = -1;
+        pathCount--;
+        if (freeCount == freeIds.length) {
+            int[] grown = new int[freeIds.length * 2];
+            System.arraycopy(freeIds, 0, grown, 0, freeCount);
+            freeIds = grown;
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    private void removeBlockSlot(Table t, int slot) {
+        // Shift back the blocks probed past the freed slot
+        int free = slot;
+        int curr = (slot + 1) & t.blockMask;
+        while (t.blockIds[curr] != 0) {
+            int home = hash(t.blockIds[curr] - 1, t.blockVersions[curr]) & t.blockMask;
+            if (((curr - home) & t.blockMask) >= ((curr - free) & t.blockMask)) {
+                t.blockIds[free] = t.blockIds[curr];
+                t.blockVersions[free] = t.blockVersions[curr];
+                t.blocks[free] = t.blocks[curr];
+                free = curr;
+            }
+            curr = (curr + 1) & t.blockMask;
+        }
+        t.blockIds[free] = 0;
+        t.blocks[free] = null;
+        blockCount--;
+    }
+
+    private void resize(int pathCapacity, int idCapacity, int blockCapacity) {
+        Table old = table;
+        Table t = new Table(pathCapacity, idCapacity, blockCapacity);
+        System.arraycopy(old.paths, 0, t.paths, 0, old.paths.length);
+        System.arraycopy(old.current, 0, t.current, 0, old.current.length);
+        System.arraycopy(old.refs, 0, t.refs, 0, old.refs.length);
+        for (int i = 0; i < old.pathSlots.length; i++) {
+            if (old.pathSlots[i] == 0) {
+                continue;
+            }
+            String path = old.paths[old.pathSlots[i] - 1];
+            int slot = hash(path, path.length()) & t.pathMask;
+            while (t.pathSlots[slot] != 0) {
+                slot = (slot + 1) & t.pathMask;
+            }
+            t.pathSlots[slot] = old.pathSlots[i];
+        }
+        for (int i = 0; i < old.blockIds.length; i++) {
+            if (old.blockIds[i] == 0) {
+                continue;
+            }
+            int slot = hash(old.blockIds[i] - 1, old.blockVersions[i]) & t.blockMask;
+            while (t.blockIds[slot] != 0) {
+                slot = (slot + 1) & t.blockMask;
+            }
+            t.blockIds[slot] = old.blockIds[i];
+            t.blockVersions[slot] = old.blockVersions[i];
+            t.blocks[slot] = old.blocks[i];
+        }
+        table = t;
+    }
+
+    /**
+     * @return map from relative original path to version cached
+     */
+    public Map<String, Long> toMap() {
+        long stamp = lock.readLock();
+        try {
+            Table t = table;
+            Map<String, Long> versions = new HashMap<>();
+            for (int id = 0; id < nextId; id++) {
+                if (t.paths[id] != null && t.current[id] >= 0) {
+                    versions.put(t.paths[id], t.current[id]);
+                }
+            }
+            return versions;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return number of paths with a version cached
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return versionCount;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded in-memory log of version changes, polled with the sequence number
+ * of the last event applied. A primary server keeps one for its replicas,
+ * and a proxy one for its peers.
+ */
+public class VersionLog {
+    /**
+     * Most events returned by one call to since, so a far-behind poller
+     * catches up over several small replies
+     */
+    public static final int MAX_EVENTS_PER_CALL = 1000;
+
+    private final int capacity;
+    private final ArrayDeque<VersionEvent> events;
+    private long lastSeq = 0;
+
+    public VersionLog(int capacity) {
+        this.capacity = capacity;
+        this.events = new ArrayDeque<>();
+    }
+
+    /**
+     * Append a published version or an unlink.
+     *
+     * @param path    relative path on server
+     * @param version new version, ignored if the file was unlinked
+     * @param length  length of the new version
+     * @param exists  false if the file was unlinked
+     */
+    public synchronized void append(String path, long version, long length, boolean exists) {
+        events.addLast(new VersionEvent(++lastSeq, path, version, length, exists));
+        if (events.size() > capacity) {
+            events.removeFirst();
+        }
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Get the events after a sequence number.
+     *
+     * @param afterSeq sequence number of the last event applied, 0 for a
+     *                 replica without any copied version
+     * @return at most MAX_EVENTS_PER_CALL events in order, a full page
+     * meaning more may follow, or null if some were already dropped from the
+     * log or <code>afterSeq</code> is from an earlier run, in which case the
+     * caller has to forget its versions and start over from 0
+     */
+    public synchronized List<VersionEvent> since(long afterSeq) {
+        if (afterSeq > lastSeq) {
+            return null;
+        }
+        List<VersionEvent> result = new ArrayList<>();
+        if (afterSeq == lastSeq) {
+            return result;
+        }
+        // A replica starting over takes whatever is left
+        if (afterSeq > 0 && events.peekFirst().getSeq() > afterSeq + 1) {
+            return null;
+        }
+        for (VersionEvent event : events) {
+            if (event.getSeq() > afterSeq) {
+                result.add(event);
+                if (result.size() == MAX_EVENTS_PER_CALL) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,375 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable version snapshots and staged writes on the server.
+ *
+ * <p>A new version is written into a private staging file and published by
+ * an atomic rename over the master copy, so the master copy is never
+ * mutated in place. A snapshot of version <code>v</code> is an open channel
+ * on the master copy as it was while <code>v</code> was current; after a
+ * rename it keeps reading the old inode. Snapshots are refcounted while a
+ * read is running and retained for a lease period after their last read, so
+ * a chunk-by-chunk download always sees one version, readers never block
+ * writers, and writers never stall readers. Open snapshots are capped: past
+ * the cap, the least recently read ones no read has pinned are closed early,
+ * and a download of such a version finds it gone and starts over.
+ */
+public class VersionStore {
+    private final Path stagingDir;
+    private final long leaseNanos;
+    private final int maxOpen;
+    /**
+     * Snapshots open, retained or retired
+     */
+    private int openCount = 0;
+    /**
+     * Maps absolute path to its retained snapshots, by version
+     */
+    private final Map<String, Map<Long, Snapshot>> snapshotMap;
+    /**
+     * Snapshots of unlinked files, closed once no read is running
+     */
+    private final List<Snapshot> retired;
+    /**
+     * Maps write id to its staged upload
+     */
+    private final Map<Long, Upload> uploadMap;
+    private final AtomicLong writeIdGen;
+
+    /**
+     * @param stagingDir  directory of the staged uploads
+     * @param leaseMillis how long a snapshot is retained after its last read
+     * @param maxOpen     snapshots kept open at most
+     * @throws IOException if the staging directory cannot be created
+     */
+    public VersionStore(String stagingDir, long leaseMillis, int maxOpen) throws IOException {
+        this.stagingDir = Files.createDirectories(Paths.get(stagingDir));
+        this.leaseNanos = leaseMillis * 1_000_000L;
+        this.maxOpen = maxOpen;
+        this.snapshotMap = new HashMap<>();
+        this.retired = new ArrayList<>();
+        this.uploadMap = new ConcurrentHashMap<>();
+        this.writeIdGen = new AtomicLong();
+        ScheduledExecutorService janitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "version-store-janitor");
+            t.setDaemon(true);
+            return t;
+        });
+        janitor.scheduleWithFixedDelay(this::expire,
+                leaseMillis,
+                leaseMillis / 2,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Pin a retained snapshot of a version.
+     *
+     * @param absPath absolute path on server
+     * @param version version to read
+     * @return the snapshot, to be released after the read, or null if the
+     * version is not retained
+     */
+    public synchronized Snapshot acquire(String absPath, long version) {
+        Map<Long, Snapshot> versions = snapshotMap.get(absPath);
+        if (versions == null) {
+            return null;
+        }
+        Snapshot snapshot = versions.get(version);
+        if (snapshot != null) {
+            snapshot.refCnt++;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Open the master copy as the snapshot of its current version, and pin
+     * it. Caller holds the path lock and has checked that
+     * <code>version</code> is current.
+     *
+     * @param absPath absolute path on server
+     * @param version current version of the master copy
+     * @return the snapshot, to be released after the read
+     * @throws IOException if the master copy cannot be opened
+     */
+    public synchronized Snapshot open(String absPath, long version) throws IOException {
+        Snapshot snapshot = acquire(absPath, version);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        FileChannel channel =
+                FileChannel.open(Paths.get(absPath), StandardOpenOption.READ);
+        snapshot = new Snapshot(channel);
+        snapshot.refCnt++;
+        snapshotMap.computeIfAbsent(absPath, p -> new HashMap<>()).put(version, snapshot);
+        openCount++;
+        trim();
+        return snapshot;
+    }
+
+    /**
+     * Close the least recently read snapshots no read has pinned, until at
+     * most maxOpen are open or all of them are pinned.
+     */
+    private void trim() {
+        while (openCount > maxOpen) {
+            Map<Long, Snapshot> oldestVersions = null;
+            long oldestVersion = 0;
+            Snapshot oldest = null;
+            for (Map<Long, Snapshot> versions : snapshotMap.values()) {
+                for (Map.Entry<Long, Snapshot> entry : versions.entrySet()) {
+                    Snapshot s = entry.getValue();
+                    if (s.refCnt == 0 && (oldest == null || s.lastAccess < oldest.lastAccess)) {
+                        oldestVersions = versions;
+                        oldestVersion = entry.getKey();
+                        oldest = s;
+                    }
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            oldestVersions.remove(oldestVersion);
+            snapshotMap.values().removeIf(Map::isEmpty);
+            openCount--;
+            try {
+                oldest.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Unpin a snapshot after a read, starting its lease.
+     *
+     * @param snapshot snapshot returned by acquire or open
+     */
+    public synchronized void release(Snapshot snapshot) {
+        snapshot.refCnt--;
+        snapshot.lastAccess = System.nanoTime();
+    }
+
+    /**
+     * Stop handing out snapshots of an unlinked file. Running reads finish on
+     * their pinned snapshot.
+     *
+     * @param absPath absolute path on server
+     */
+    public synchronized void retire(String absPath) {
+        Map<Long, Snapshot> versions = snapshotMap.remove(absPath);
+        if (versions != null) {
+            retired.addAll(versions.values());
+        }
+    }
+
+    /**
+     * Start staging a new version of a file.
+     *
+     * @param absPath absolute path of the master copy
+     * @return write id for the following writes and commit
+     * @throws IOException if the staging file cannot be created
+     */
+    public long beginWrite(String absPath) throws IOException {
+        long writeId = writeIdGen.incrementAndGet();
+        Path staging = stagingDir.resolve("write_" + writeId);
+        FileChannel channel = FileChannel.open(staging,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        uploadMap.put(writeId, new Upload(absPath, staging, channel));
+        return writeId;
+    }
+
+    /**
+     * Write bytes into a staged version.
+     *
+     * @param writeId write id from beginWrite
+     * @param buf     bytes to write
+     * @param offset  offset in the new version
+     * @throws IOException if the write id is unknown or the write fails
+     */
+    public void write(long writeId, byte[] buf, long offset) throws IOException {
+        Upload upload = getUpload(writeId);
+        ByteBuffer src = ByteBuffer.wrap(buf);
+        while (src.hasRemaining()) {
+            upload.channel.write(src, offset + src.position());
+        }
+        upload.lastAccess = System.nanoTime();
+    }
+
+    /**
+     * Finish staging a version. The caller publishes the returned staging
+     * file over the master copy.
+     *
+     * @param writeId write id from beginWrite
+     * @return the finished upload
+     * @throws IOException if the write id is unknown
+     */
+    public Upload finishWrite(long writeId) throws IOException {
+        Upload upload = getUpload(writeId);
+        uploadMap.remove(writeId);
+        upload.channel.close();
+        return upload;
+    }
+
+    /**
+     * Drop a staged version without publishing it.
+     *
+     * @param writeId write id from beginWrite
+     */
+    public void abort(long writeId) {
+        Upload upload = uploadMap.remove(writeId);
+        if (upload == null) {
+            return;
+        }
+        try {
+            upload.channel.close();
+            Files.deleteIfExists(upload.staging);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param writeId write id from beginWrite
+     * @return true if the upload is neither finished, aborted nor dropped as
+     * abandoned
+     */
+    public boolean isActive(long writeId) {
+        return uploadMap.containsKey(writeId);
+    }
+
+    private Upload getUpload(long writeId) throws IOException {
+        Upload upload = uploadMap.get(writeId);
+        if (upload == null) {
+            throw new NoSuchFileException("Unknown or expired write id " + writeId);
+        }
+        return upload;
+    }
+
+    /**
+     * Close snapshots whose lease ran out, and drop abandoned uploads.
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        List<Snapshot> expired = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map<Long, Snapshot>> pathIt = snapshotMap.values().iterator();
+            while (pathIt.hasNext()) {
+                Map<Long, Snapshot> versions = pathIt.next();
+                versions.values().removeIf(s -> {
+                    if (s.refCnt == 0 && now - s.lastAccess > leaseNanos) {
+                        expired.add(s);
+                        return true;
+                    }
+                    return false;
+                });
+                if (versions.isEmpty()) {
+                    pathIt.remove();
+                }
+            }
+            retired.removeIf(s -> {
+                if (s.refCnt == 0) {
+                    expired.add(s);
+                    return true;
+                }
+                return false;
+            });
+            openCount -= expired.size();
+        }
+        for (Snapshot snapshot : expired) {
+            try {
+                snapshot.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        uploadMap.values().removeIf(u -> {
+            if (now - u.lastAccess > leaseNanos) {
+                System.err.println("[ Dropping abandoned upload of: " + u.absPath + " ]");
+                try {
+                    u.channel.close();
+                    Files.deleteIfExists(u.staging);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * An open channel on one immutable version of a file.
+     */
+    public static class Snapshot {
+        private final FileChannel channel;
+        private int refCnt;
+        private long lastAccess;
+
+        Snapshot(FileChannel channel) {
+            this.channel = channel;
+            this.lastAccess = System.nanoTime();
+        }
+
+        /**
+         * Read a chunk of the snapshot, zero filled past the end of file.
+         *
+         * @param nbytes length of the chunk
+         * @param offset offset of the chunk
+         * @param direct true to read into a direct buffer, false for heap
+         * @return buffer holding the chunk
+         * @throws IOException if the read fails
+         */
+        public ByteBuffer read(int nbytes, long offset, boolean direct) throws IOException {
+            ByteBuffer buf = direct ? ByteBuffer.allocateDirect(nbytes) : ByteBuffer.allocate(nbytes);
+            while (buf.hasRemaining()
+                    && channel.read(buf, offset + buf.position()) != -1) {
+                // Keep reading until the chunk is full or end of file
+            }
+            return buf;
+        }
+    }
+
+    /**
+     * A version being staged by one writer.
+     */
+    public static class Upload {
+        private final String absPath;
+        private final Path staging;
+        private final FileChannel channel;
+        private volatile long lastAccess;
+
+        Upload(String absPath, Path staging, FileChannel channel) {
+            this.absPath = absPath;
+            this.staging = staging;
+            this.channel = channel;
+            this.lastAccess = System.nanoTime();
+        }
+
+        public String getAbsPath() {
+            return absPath;
+        }
+
+        public Path getStaging() {
+            return staging;
+        }
+    }
+}
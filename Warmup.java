@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fills an empty cache from a manifest of paths, such as the hot set another
+ * proxy exported, so the first clients after a start do not all go to the
+ * servers. Metadata is fetched in one batch per server, then files are
+ * downloaded by several workers, hottest first, until the cache would be
+ * full. Progress and the final rate are logged.
+ */
+public class Warmup {
+    /**
+     * How often progress is logged
+     */
+    private static final long PROGRESS_MS = 2000;
+
+    private final LRUCache lruCache;
+    private final ServerRouter router;
+    private final List<RefreshAhead.Fetcher> fetchers;
+    private final AtomicInteger filesDone;
+    private final AtomicLong bytesDone;
+    private volatile int filesTotal = 0;
+
+    /**
+     * @param fetchers one fetcher per worker, each downloading one file at a
+     *                 time
+     */
+    public Warmup(LRUCache lruCache, ServerRouter router, List<RefreshAhead.Fetcher> fetchers) {
+        this.lruCache = lruCache;
+        this.router = router;
+        this.fetchers = fetchers;
+        this.filesDone = new AtomicInteger();
+        this.bytesDone = new AtomicLong();
+    }
+
+    /**
+     * Read a manifest: one relative path per line, hottest first. Blank lines
+     * and lines starting with # are skipped.
+     *
+     * @param manifest path of the manifest file
+     * @return paths listed, without duplicates
+     * @throws IOException if the file cannot be read
+     */
+    public static List<String> readManifest(String manifest) throws IOException {
+        LinkedHashSet<String> paths = new LinkedHashSet<>();
+        for (String line : Files.readAllLines(Paths.get(manifest))) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                paths.add(Paths.get(line).normalize().toString());
+            }
+        }
+        return new ArrayList<>(paths);
+    }
+
+    /**
+     * Warm the cache in the background.
+     *
+     * @param paths relative paths, hottest first
+     */
+    public void start(List<String> paths) {
+        Thread t = new Thread(() -> run(paths), "warmup");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Warm the cache and wait until it is done.
+     *
+     * @param paths relative paths, hottest first
+     */
+    public void run(List<String> paths) {
+        long start = System.nanoTime();
+        List<String> toFetch = new ArrayList<>();
+        List<FileMeta> fileMetas = new ArrayList<>();
+        long budget = lruCache.getCapacity();
+        for (Map.Entry<String, FileMeta> entry : fetchMeta(paths).entrySet()) {
+            FileMeta fileMeta = entry.getValue();
+            if (!fileMeta.exists()
+                    || fileMeta.isDirectory()
+                    || fileMeta.getVersion() <= lruCache.getFileVersion(entry.getKey())
+                    || fileMeta.getLength() > budget) {
+                continue;
+            }
+            budget -= fileMeta.getLength();
+            toFetch.add(entry.getKey());
+            fileMetas.add(fileMeta);
+        }
+        filesTotal = toFetch.size();
+        System.err.println("[ Warm-up: fetching " + filesTotal + " of " + paths.size() + " files ]");
+
+        ExecutorService workers = Executors.newFixedThreadPool(fetchers.size(), r -> {
+            Thread t = new Thread(r, "warmup-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger next = new AtomicInteger();
+        for (RefreshAhead.Fetcher fetcher : fetchers) {
+            workers.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < toFetch.size()) {
+                    fetcher.fetch(toFetch.get(i), fileMetas.get(i));
+                    filesDone.incrementAndGet();
+                    bytesDone.addAndGet(fileMetas.get(i).getLength());
+                }
+            });
+        }
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(PROGRESS_MS, TimeUnit.MILLISECONDS)) {
+                System.err.println("[ Warm-up: " + progress(start) + " ]");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.err.println("[ Warm-up done: " + progress(start) + " ]");
+    }
+
+    /**
+     * Get the meta data of the paths, with one batched call per server.
+     *
+     * @return map from path to its meta data, in manifest order
+     */
+    private Map<String, FileMeta> fetchMeta(List<String> paths) {
+        Map<String, List<String>> byServer = new HashMap<>();
+        for (String path : paths) {
+            byServer.computeIfAbsent(router.urlFor(path), url -> new ArrayList<>()).add(path);
+        }
+        Map<String, FileMeta> metas = new HashMap<>();
+        for (List<String> serverPaths : byServer.values()) {
+            try {
+                List<FileMeta> fileMetas = AsyncFileHandler.await(router.asyncFor(serverPaths.get(0)).call(
+                        AsyncFileHandler.RequestClass.PREFETCH,
+                        h -> h.getFileMetaBatch(serverPaths)));
+                for (int i = 0; i < serverPaths.size(); i++) {
+                    metas.put(serverPaths.get(i), fileMetas.get(i));
+                }
+            } catch (IOException e) {
+                System.err.println("[ Warm-up metadata failed: " + e.getMessage() + " ]");
+            }
+        }
+        Map<String, FileMeta> ordered = new LinkedHashMap<>();
+        for (String path : paths) {
+            if (metas.containsKey(path)) {
+                ordered.put(path, metas.get(path));
+            }
+        }
+        return ordered;
+    }
+
+    private String progress(long start) {
+        double secs = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+        return filesDone.get() + "/" + filesTotal + " files, "
+                + bytesDone.get() + " bytes in "
+                + String.format("%.1f", secs) + " s, "
+                + String.format("%.1f", bytesDone.get() / secs / (1024 * 1024)) + " MB/s";
+    }
+}